@@ -0,0 +1,49 @@
+package ru.prestu.samples;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Запуск JMH для каждого числа потоков из списка, результат каждого прогона - отдельный JSON-файл:
+BenchmarkRunner <каталог результатов> <1,2,4,8,N> [аргументы JMH]
+JSON-файлы разных версий сравниваются между собой для поиска регрессий.
+Всегда подключены GCProfiler (аллокации на операцию) и BytesPerOpProfiler (записанные байты на операцию).
+*/
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        File resultsDir = new File(args[0]);
+        resultsDir.mkdirs();
+        CommandLineOptions jmhOptions = new CommandLineOptions(Arrays.copyOfRange(args, 2, args.length));
+        for (int threads : threadCounts(args[1])) {
+            File result = new File(resultsDir, threads + "-threads.json");
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(jmhOptions)
+                    .threads(threads)
+                    //Трассировка increaseI в консоль исказила бы замеры
+                    .jvmArgsAppend("-Dsamples.trace=false")
+                    .addProfiler(GCProfiler.class)
+                    .addProfiler(BytesPerOpProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result.getPath());
+            new Runner(options.build()).run();
+        }
+    }
+
+    private static Set<Integer> threadCounts(String list) {
+        Set<Integer> counts = new LinkedHashSet<>();
+        for (String count : list.split(",")) {
+            counts.add("N".equals(count) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(count));
+        }
+        return counts;
+    }
+
+}
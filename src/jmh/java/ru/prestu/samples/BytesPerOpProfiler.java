@@ -0,0 +1,44 @@
+package ru.prestu.samples;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/*
+Число байт на операцию бенчмарка, по аналогии с gc.alloc.rate.norm из GCProfiler.
+Бенчмарк сообщает записанные байты через record(), профайлер делит их на число операций итерации.
+*/
+public class BytesPerOpProfiler implements InternalProfiler {
+
+    private static final LongAdder BYTES = new LongAdder();
+
+    public static void record(long bytes) {
+        BYTES.add(bytes);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Bytes written per benchmark operation";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        BYTES.reset();
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        long bytes = BYTES.sumThenReset();
+        long ops = result.getMetadata().getAllOps();
+        if (bytes == 0 || ops == 0) return Collections.emptyList();
+        return Collections.singletonList(new ScalarResult("bytes.norm", (double) bytes / ops, "B/op", AggregationPolicy.AVG));
+    }
+
+}
@@ -0,0 +1,71 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+100 000 одновременных блокирующих задач: инкремент SynchronizedResource и сон, как в MyThread/testLock.
+* FIXED_POOL - пул из POOL_SIZE потоков ОС, задачи ждут в очереди
+* PER_TASK - ExecutionMode.newPerTaskExecutor(): на JDK 21+ из multi-release jar это виртуальный поток на задачу
+Запуск на JDK 21, один поток JMH:
+mvn -P jmh package exec:exec -DskipTests -Djmh.threads=1 -Djmh.args=BlockingTasksBenchmark
+*/
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingTasksBenchmark {
+
+    private static final int POOL_SIZE = 256;
+    private static final long SLEEP_MILLIS = 10;
+
+    public enum Executor {
+        FIXED_POOL,
+        PER_TASK
+    }
+
+    @Param({"FIXED_POOL", "PER_TASK"})
+    public Executor executor;
+
+    @Param({"100000"})
+    public int tasks;
+
+    @Benchmark
+    public int blockingTasks() throws Exception {
+        SynchronizedResource resource = new SynchronizedResource();
+        ExecutorService service = executor == Executor.FIXED_POOL
+                ? Executors.newFixedThreadPool(POOL_SIZE)
+                : ExecutionMode.newPerTaskExecutor();
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks);
+            for (int k = 0; k < tasks; k++) {
+                futures.add(service.submit(() -> {
+                    resource.increaseI();
+                    Thread.sleep(SLEEP_MILLIS);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            service.shutdown();
+        }
+        return resource.getI();
+    }
+
+}
@@ -0,0 +1,202 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/*
+Пропускная способность (Throughput) и перцентили задержки (SampleTime) примитивов из ConcurrencyTest.
+Число потоков задается снаружи, см. BenchmarkRunner.
+*/
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ResourceState {
+
+        @Param({"MONITOR", "REENTRANT_LOCK", "ATOMIC", "STRIPED", "STAMPED_LOCK"})
+        public CounterType counterType;
+
+        SynchronizedResource resource;
+
+        @Setup
+        public void setUp() {
+            resource = new SynchronizedResource(counterType);
+        }
+    }
+
+    /*
+    Цена включенной статистики блокировок: один и тот же MonitorCounter без Probe и с ним.
+    Разница считается по Throughput всех потоков (1/score на операцию): при потоках больше, чем ядер,
+    время операции в SampleTime включает ожидание процессора и растет вместе с числом потоков.
+    */
+    @State(Scope.Benchmark)
+    public static class StatsState {
+
+        @Param({"false", "true"})
+        public boolean measured;
+
+        Counter counter;
+
+        @Setup
+        public void setUp() {
+            counter = new MonitorCounter(new Object(), measured ? LockStats.forName("ConcurrencyBenchmark/MONITOR").newProbe() : null);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LockState {
+        final Lock lock = new ReentrantLock();
+        int counter;
+    }
+
+    @State(Scope.Benchmark)
+    public static class AtomicState {
+        final AtomicInteger atomicVar = new AtomicInteger();
+    }
+
+    //Передача одного элемента от Operator к Machine через Condition, как в testCondition
+    @State(Scope.Group)
+    public static class Handoff {
+        final Lock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final Condition notFull = lock.newCondition();
+        boolean full;
+        int item;
+
+        //Ожидание ограничено по времени, чтобы поток не завис, когда вторая сторона уже закончила итерацию
+        void put(int value, Control control) throws InterruptedException {
+            lock.lock();
+            try {
+                while (full) {
+                    if (control.stopMeasurement) return;
+                    notFull.await(1, TimeUnit.MILLISECONDS);
+                }
+                item = value;
+                full = true;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int take(Control control) throws InterruptedException {
+            lock.lock();
+            try {
+                while (!full) {
+                    if (control.stopMeasurement) return -1;
+                    notEmpty.await(1, TimeUnit.MILLISECONDS);
+                }
+                full = false;
+                notFull.signal();
+                return item;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //Та же передача через SpscRingBuffer, без блокировок
+    @State(Scope.Group)
+    public static class RingHandoff {
+        final BoundedQueue<Integer> queue = new SpscRingBuffer<>(1024);
+    }
+
+    @Benchmark
+    public void synchronizedResource(ResourceState state) {
+        state.resource.increaseI();
+    }
+
+    @Benchmark
+    public void lockStats(StatsState state) {
+        state.counter.increaseI();
+    }
+
+    @Benchmark
+    public void synchronizedStaticResource() {
+        SynchronizedStaticResource.increaseI();
+    }
+
+    @Benchmark
+    public int reentrantLock(LockState state) {
+        state.lock.lock();
+        try {
+            return ++state.counter;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    //Как SecondThread в testLock: tryLock, при неудаче уступить процессор и повторить
+    @Benchmark
+    public int tryLock(LockState state) {
+        while (!state.lock.tryLock()) {
+            Thread.yield();
+        }
+        try {
+            return ++state.counter;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public int atomicInteger(AtomicState state) {
+        return state.atomicVar.incrementAndGet();
+    }
+
+    @Benchmark
+    @Group("conditionHandoff")
+    @GroupThreads(1)
+    public void operator(Handoff handoff, Control control) throws InterruptedException {
+        handoff.put(1, control);
+    }
+
+    @Benchmark
+    @Group("conditionHandoff")
+    @GroupThreads(1)
+    public int machine(Handoff handoff, Control control) throws InterruptedException {
+        return handoff.take(control);
+    }
+
+    @Benchmark
+    @Group("spscHandoff")
+    @GroupThreads(1)
+    public void ringOperator(RingHandoff handoff, Control control) {
+        while (!handoff.queue.offer(1) && !control.stopMeasurement) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("spscHandoff")
+    @GroupThreads(1)
+    public Integer ringMachine(RingHandoff handoff, Control control) {
+        Integer item;
+        while ((item = handoff.queue.poll()) == null && !control.stopMeasurement) {
+            Thread.yield();
+        }
+        return item;
+    }
+
+}
@@ -0,0 +1,127 @@
+package ru.prestu.samples.files;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Копирование файла размером size байт.
+* STREAM - FileInputStream/FileOutputStream через массив, как в FilesTest
+* HEAP_BUFFER - FileChannel через ByteBuffer.allocate: JDK копирует данные еще раз во временный direct-буфер
+* DIRECT_BUFFER - запасной цикл FileTransfer через direct-буфер из пула
+* TRANSFER - FileTransfer.copy, FileChannel.transferTo без копирования в пространство пользователя
+Запуск: mvn -P jmh package exec:exec -DskipTests -Djmh.threads=1 -Djmh.args=FileCopyBenchmark
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileCopyBenchmark {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum Method {
+        STREAM {
+            @Override
+            long copy(Path source, Path target) throws IOException {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long done = 0;
+                try (InputStream in = new FileInputStream(source.toFile()); OutputStream out = new FileOutputStream(target.toFile())) {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                        done += read;
+                    }
+                }
+                return done;
+            }
+        },
+        HEAP_BUFFER {
+            @Override
+            long copy(Path source, Path target) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                long done = 0;
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (in.read(buffer) >= 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) done += out.write(buffer);
+                        buffer.clear();
+                    }
+                }
+                return done;
+            }
+        },
+        DIRECT_BUFFER {
+            @Override
+            long copy(Path source, Path target) throws IOException {
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    return FileTransfer.copyBuffered(in, 0, in.size(), out);
+                }
+            }
+        },
+        TRANSFER {
+            @Override
+            long copy(Path source, Path target) throws IOException {
+                return FileTransfer.copy(source, target);
+            }
+        };
+
+        abstract long copy(Path source, Path target) throws IOException;
+    }
+
+    @Param({"STREAM", "HEAP_BUFFER", "DIRECT_BUFFER", "TRANSFER"})
+    public Method method;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] content = new byte[size];
+        new Random(16).nextBytes(content);
+        source = Files.createTempFile("copy", ".src");
+        target = Files.createTempFile("copy", ".dst");
+        Files.write(source, content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(source);
+        Files.delete(target);
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return method.copy(source, target);
+    }
+
+}
@@ -0,0 +1,99 @@
+package ru.prestu.samples.serialization;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.prestu.samples.files.DirectBufferPool;
+
+/*
+Запись пакета DataObject в файл записей: RecordFileWriter.append в одном потоке
+против ParallelBatchWriter с parallelism потоками кодирования (0 - по числу процессоров).
+Запуск: mvn -P jmh package exec:exec -DskipTests -Djmh.threads=1 -Djmh.args=BatchWriteBenchmark
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Thread)
+public class BatchWriteBenchmark {
+
+    @Param({"1", "2", "4", "0"})
+    public int parallelism;
+
+    @Param({"100000"})
+    public int batchSize;
+
+    @Param({"16", "1024"})
+    public int myDataLength;
+
+    private List<DataObject> batch;
+    private ForkJoinPool pool;
+    private DirectBufferPool buffers;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String myData = new String(new char[myDataLength]).replace('\0', 'd');
+        batch = new ArrayList<>(batchSize);
+        for (int k = 0; k < batchSize; k++) {
+            DataObject obj = new DataObject();
+            obj.setI(k);
+            obj.setS("record " + k);
+            obj.setMyData(myData);
+            batch.add(obj);
+        }
+        pool = new ForkJoinPool(parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism);
+        buffers = new DirectBufferPool(1024 * 1024, 64);
+    }
+
+    @Setup(Level.Invocation)
+    public void createFile() throws IOException {
+        file = Files.createTempFile("batch", ".bin");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFile() throws IOException {
+        Files.delete(file);
+        Files.deleteIfExists(RecordFileWriter.indexFile(file));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long singleThreaded() throws IOException {
+        try (RecordFileWriter writer = new RecordFileWriter(file)) {
+            for (DataObject obj : batch) writer.append(obj);
+            return writer.size();
+        }
+    }
+
+    @Benchmark
+    public long parallel() throws IOException {
+        try (ParallelBatchWriter writer = new ParallelBatchWriter(file, pool, buffers)) {
+            writer.write(batch);
+            return writer.size();
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+package ru.prestu.samples.serialization;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.prestu.samples.BytesPerOpProfiler;
+
+/*
+Сравнение форматов записи DataObject: время на операцию (ns/op), байты на операцию (bytes.norm)
+и аллокации на операцию (gc.alloc.rate.norm). Операция - запись или чтение пакета из batchSize объектов.
+Запуск в один поток: mvn -P jmh package exec:exec -DskipTests -Djmh.threads=1 -Djmh.args=SerializationBenchmark
+Память под наибольшую комбинацию (1000000 объектов по 1024 символа):
+* Пакет для write (WriteState) - ~1.2 ГБ, на Java 8 со строками в char[] - ~2.2 ГБ
+* Закодированная копия для read (ReadState) - ~1.05 ГБ; пишется из создаваемых на лету объектов в массив точного размера,
+  посчитанного предварительным проходом, так что пакет, растущий буфер и его копия в памяти одновременно не лежат
+* Каждый бенчмарк создает только свое состояние, оба общие для всех потоков (Scope.Benchmark)
+* ObjectOutputStream сбрасывает таблицу ссылок каждые RESET_INTERVAL объектов (reset()), иначе ObjectInputStream
+  держал бы все прочитанные объекты до конца пакета
+Отсюда -Xmx3g: наибольшее состояние плюс объекты, создаваемые за операцию.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    //Объектов между ObjectOutputStream.reset(); маркер сброса и повторное описание класса - несколько десятков байт
+    static final int RESET_INTERVAL = 1024;
+
+    public enum Format {
+        //Стандартная сериализация: DataObject.writeObject/readObject
+        SERIALIZABLE {
+            @Override
+            void write(List<DataObject> batch, OutputStream out) throws IOException {
+                ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+                int written = 0;
+                for (DataObject obj : batch) {
+                    objectOutputStream.writeObject(obj);
+                    if (++written % RESET_INTERVAL == 0) objectOutputStream.reset();
+                }
+                objectOutputStream.flush();
+            }
+
+            @Override
+            void read(byte[] encoded, int count, Blackhole blackhole) throws IOException, ClassNotFoundException {
+                ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(encoded));
+                for (int k = 0; k < count; k++) blackhole.consume(objectInputStream.readObject());
+            }
+        },
+        //Externalizable, как у CustomObject: поля пишутся вручную, но через ObjectOutputStream
+        EXTERNALIZABLE {
+            @Override
+            void write(List<DataObject> batch, OutputStream out) throws IOException {
+                ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+                int written = 0;
+                for (DataObject obj : batch) {
+                    objectOutputStream.writeObject(new ExternalDataObject(obj));
+                    if (++written % RESET_INTERVAL == 0) objectOutputStream.reset();
+                }
+                objectOutputStream.flush();
+            }
+
+            @Override
+            void read(byte[] encoded, int count, Blackhole blackhole) throws IOException, ClassNotFoundException {
+                ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(encoded));
+                for (int k = 0; k < count; k++) blackhole.consume(((ExternalDataObject) objectInputStream.readObject()).obj);
+            }
+        },
+        //Без метаданных: DataOutputStream поверх буфера
+        DATA_STREAM {
+            @Override
+            void write(List<DataObject> batch, OutputStream out) throws IOException {
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(out));
+                for (DataObject obj : batch) writeFields(obj, dataOutputStream);
+                dataOutputStream.flush();
+            }
+
+            @Override
+            void read(byte[] encoded, int count, Blackhole blackhole) throws IOException {
+                DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(encoded));
+                for (int k = 0; k < count; k++) blackhole.consume(readFields(dataInputStream));
+            }
+        },
+        //DataObjectCodec поверх ByteBuffer
+        CODEC {
+            @Override
+            void write(List<DataObject> batch, OutputStream out) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                for (DataObject obj : batch) {
+                    int size = DataObjectCodec.encodedSize(obj);
+                    if (size > buffer.remaining()) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                        if (size > buffer.capacity()) buffer = ByteBuffer.allocate(size);
+                    }
+                    DataObjectCodec.encode(obj, buffer);
+                }
+                out.write(buffer.array(), 0, buffer.position());
+            }
+
+            @Override
+            void read(byte[] encoded, int count, Blackhole blackhole) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                for (int k = 0; k < count; k++) blackhole.consume(DataObjectCodec.decode(buffer));
+            }
+        };
+
+        abstract void write(List<DataObject> batch, OutputStream out) throws IOException;
+
+        abstract void read(byte[] encoded, int count, Blackhole blackhole) throws IOException, ClassNotFoundException;
+    }
+
+    public static class ExternalDataObject implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        DataObject obj;
+
+        public ExternalDataObject() {
+        }
+
+        ExternalDataObject(DataObject obj) {
+            this.obj = obj;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            writeFields(obj, out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            obj = readFields(in);
+        }
+    }
+
+    @Param({"SERIALIZABLE", "EXTERNALIZABLE", "DATA_STREAM", "CODEC"})
+    public Format format;
+
+    @Param({"1", "1000", "1000000"})
+    public int batchSize;
+
+    @Param({"16", "1024"})
+    public int myDataLength;
+
+    //Пакет объектов для write
+    @State(Scope.Benchmark)
+    public static class WriteState {
+
+        List<DataObject> batch;
+
+        @Setup
+        public void setUp(SerializationBenchmark params) {
+            batch = new ArrayList<>(params.generated());
+        }
+    }
+
+    //Закодированный пакет для read; сами объекты в памяти не остаются
+    @State(Scope.Benchmark)
+    public static class ReadState {
+
+        byte[] encoded;
+
+        @Setup
+        public void setUp(SerializationBenchmark params) throws IOException {
+            List<DataObject> generated = params.generated();
+            CountingSink size = new CountingSink();
+            params.format.write(generated, size);
+            if (size.count > Integer.MAX_VALUE) throw new IllegalStateException("Encoded batch of " + size.count + " bytes");
+            encoded = new byte[(int) size.count];
+            ArraySink sink = new ArraySink(encoded);
+            params.format.write(generated, sink);
+            if (sink.position != encoded.length) throw new IllegalStateException("Encoded " + sink.position + " of " + encoded.length + " bytes");
+        }
+    }
+
+    @Benchmark
+    public long write(WriteState state, CountingSink sink) throws IOException {
+        long before = sink.count;
+        format.write(state.batch, sink);
+        long written = sink.count - before;
+        BytesPerOpProfiler.record(written);
+        return written;
+    }
+
+    @Benchmark
+    public void read(ReadState state, Blackhole blackhole) throws IOException, ClassNotFoundException {
+        format.read(state.encoded, batchSize, blackhole);
+    }
+
+    //Объекты пакета создаются заново при каждом обращении, поэтому проход по списку не держит их в памяти
+    List<DataObject> generated() {
+        char[] chars = new char[myDataLength];
+        Arrays.fill(chars, 'x');
+        String myData = new String(chars);
+        return new AbstractList<DataObject>() {
+            @Override
+            public DataObject get(int k) {
+                DataObject obj = new DataObject();
+                obj.setI(k);
+                obj.setS("string " + (k % 100));
+                //Отдельный экземпляр строки на объект, иначе ObjectOutputStream запишет ссылку вместо значения
+                obj.setMyData(new String(myData));
+                CustomObject custom = new CustomObject();
+                custom.setB(k % 2 == 0);
+                obj.setObj(custom);
+                return obj;
+            }
+
+            @Override
+            public int size() {
+                return batchSize;
+            }
+        };
+    }
+
+    static void writeFields(DataObject obj, DataOutput out) throws IOException {
+        out.writeInt(obj.getI());
+        out.writeByte(DataObjectCodec.objFlag(obj.getObj()));
+        writeNullableUTF(obj.getS(), out);
+        writeNullableUTF(obj.getMyData(), out);
+    }
+
+    static DataObject readFields(DataInput in) throws IOException {
+        DataObject obj = new DataObject();
+        obj.setI(in.readInt());
+        obj.setObj(DataObjectCodec.toObj(in.readByte()));
+        obj.setS(readNullableUTF(in));
+        obj.setMyData(readNullableUTF(in));
+        return obj;
+    }
+
+    private static void writeNullableUTF(String s, DataOutput out) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readNullableUTF(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    //Приемник, который только считает байты, чтобы запись не упиралась в память или диск
+    @State(Scope.Thread)
+    public static class CountingSink extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    //Запись в массив заранее известного размера, без роста и копирования, как у ByteArrayOutputStream
+    static final class ArraySink extends OutputStream {
+
+        private final byte[] array;
+        int position;
+
+        ArraySink(byte[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public void write(int b) {
+            array[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, array, position, len);
+            position += len;
+        }
+    }
+
+}
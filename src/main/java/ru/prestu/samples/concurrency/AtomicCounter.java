@@ -0,0 +1,28 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AtomicCounter implements Counter {
+
+    private final AtomicInteger i = new AtomicInteger(0);
+
+    @Override
+    public int getI() {
+        return i.get();
+    }
+
+    @Override
+    public void setI(int i) {
+        this.i.set(i);
+    }
+
+    @Override
+    public void increaseI() {
+        //CAS-цикл: при неудаче значение перечитывается и попытка повторяется, поток не блокируется
+        for (;;) {
+            int current = i.get();
+            if (i.compareAndSet(current, current + 1)) return;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.Collection;
+
+/*
+Ограниченная неблокирующая очередь.
+offer/poll никогда не ждут; put/take ждут по выбранной стратегии и реагируют на interrupt().
+*/
+public interface BoundedQueue<E> {
+
+    //false, если очередь заполнена
+    boolean offer(E e);
+
+    //null, если очередь пуста
+    E poll();
+
+    //Переносит в batch до max элементов, возвращает их число
+    int drainTo(Collection<? super E> batch, int max);
+
+    int size();
+
+    int capacity();
+
+    default void put(E e, WaitStrategy strategy) throws InterruptedException {
+        int attempt = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            attempt = strategy.idle(attempt);
+        }
+    }
+
+    default E take(WaitStrategy strategy) throws InterruptedException {
+        int attempt = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            attempt = strategy.idle(attempt);
+        }
+        return e;
+    }
+
+    //Ждет хотя бы один элемент, затем забирает все доступные, но не больше max
+    default int drainTo(Collection<? super E> batch, int max, WaitStrategy strategy) throws InterruptedException {
+        int attempt = 0;
+        int drained;
+        while ((drained = drainTo(batch, max)) == 0) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            attempt = strategy.idle(attempt);
+        }
+        return drained;
+    }
+
+}
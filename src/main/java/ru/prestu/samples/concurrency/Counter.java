@@ -0,0 +1,16 @@
+package ru.prestu.samples.concurrency;
+
+/*
+Общий интерфейс счетчика, за которым скрывается конкретный механизм синхронизации.
+Все реализации ведут себя одинаково: getI/setI/increaseI потокобезопасны,
+а increaseI не теряет инкременты при одновременном вызове из разных потоков.
+*/
+public interface Counter {
+
+    int getI();
+
+    void setI(int i);
+
+    void increaseI();
+
+}
@@ -0,0 +1,62 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+Выбор реализации счетчика при создании ресурса:
+* MONITOR - synchronized-блок на мониторе владельца, как было изначально
+* REENTRANT_LOCK - java.util.concurrent.locks.ReentrantLock
+* ATOMIC - CAS-цикл над AtomicInteger, без блокировок
+* STRIPED - LongAdder, значение разнесено по ячейкам, дешевая запись при высокой конкуренции, чтение дороже
+* STAMPED_LOCK - StampedLock, оптимистичное чтение без блокировки
+*/
+public enum CounterType {
+
+    MONITOR {
+        @Override
+        public Counter create(Object monitor) {
+            return new MonitorCounter(monitor, LockStats.forLock(monitor, this));
+        }
+    },
+    REENTRANT_LOCK {
+        @Override
+        public Counter create(Object monitor) {
+            return new ReentrantLockCounter(LockStats.forLock(monitor, this));
+        }
+    },
+    ATOMIC {
+        @Override
+        public Counter create(Object monitor) {
+            return new AtomicCounter();
+        }
+    },
+    STRIPED {
+        @Override
+        public Counter create(Object monitor) {
+            return new StripedCounter();
+        }
+    },
+    STAMPED_LOCK {
+        @Override
+        public Counter create(Object monitor) {
+            return new StampedLockCounter(LockStats.forLock(monitor, this));
+        }
+    };
+
+    //Имя реализации из системного свойства, без учета регистра; неизвестное имя - ошибка с перечнем допустимых
+    public static CounterType fromProperty(String property, CounterType defaultType) {
+        String value = System.getProperty(property);
+        if (value == null || value.trim().isEmpty()) return defaultType;
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + property + "=" + value + ", expected one of " + Arrays.toString(values()), e);
+        }
+    }
+
+    //monitor используется только реализацией MONITOR, остальные держат собственную синхронизацию
+    //Для блокирующих реализаций тип monitor дает имя статистики LockStats (-Dsamples.lockstats=true)
+    public abstract Counter create(Object monitor);
+
+}
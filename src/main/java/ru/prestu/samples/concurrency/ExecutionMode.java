@@ -0,0 +1,30 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Режим исполнения блокирующих задач (sleep, ожидание блокировки, файловый ввод-вывод), зависящий от версии Java.
+Jar собирается как multi-release: на Java 8-20 используется этот класс, на Java 21+ - версия из src/main/java21,
+где каждая задача получает свой виртуальный поток, а вместо synchronized используется ReentrantLock.
+*/
+public final class ExecutionMode {
+
+    private ExecutionMode() {
+    }
+
+    public static boolean isVirtual() {
+        return false;
+    }
+
+    //Поток на задачу, как у MyThread/MyRunnable; каждая задача занимает поток ОС
+    public static ExecutorService newPerTaskExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+
+    //Реализация счетчика для ресурсов, созданных без явного CounterType
+    public static CounterType defaultCounterType() {
+        return CounterType.MONITOR;
+    }
+
+}
@@ -0,0 +1,333 @@
+package ru.prestu.samples.concurrency;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import ru.prestu.samples.metrics.Histogram;
+import ru.prestu.samples.metrics.Jmx;
+
+/*
+Статистика конкуренции за блокировку, включается свойством -Dsamples.lockstats=true.
+* Замер ведет Probe - один на блокировку; у каждой блокировки свои глубина очереди и счетчики захватов,
+  иначе потоки разных экземпляров считались бы конкурентами друг друга
+* Глубина очереди - число потоков, ждущих или держащих блокировку; захват при ненулевой глубине считается конкурентным
+* Время ожидания захвата и время удержания - гистограммы в наносекундах по случайной выборке захватов,
+  в среднем один из samples.lockstats.sample (по умолчанию 16, округляется вниз до степени двойки; 1 - каждый)
+* LockStats объединяет блокировки с одним именем (например, все экземпляры SynchronizedResource) для JMX:
+  счетчики суммируются по Probe при чтении, queueDepth - сумма текущих глубин, maxQueueDepth - наибольшая
+* Счетчики Probe собранной сборщиком мусора блокировки переносятся в итог LockStats, поэтому суммы не убывают
+  и сходятся с гистограммами, где выборка этой блокировки остается
+* snapshotAll() дает снимок всех имен
+Выключенная статистика не создается: счетчики из CounterType получают null и идут по прежнему пути без замеров.
+Включенная стоит два атомарных приращения глубины и упорядоченные записи счетчиков под блокировкой на захват,
+для попавших в выборку - еще три вызова System.nanoTime() (на виртуальной машине ~40 нс каждый).
+*/
+public final class LockStats implements LockStatsMXBean {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("samples.lockstats", "false"));
+    static final String JMX_TYPE = "LockStats";
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("samples.lockstats.sample", 16))) - 1;
+    //Метка захвата вне выборки вместо времени
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    //Младший бит метки захвата - признак конкурентного захвата; время выборки теряет наносекунду
+    private static final long CONTENDED = 1;
+
+    private static final ConcurrentMap<String, LockStats> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Histogram waitTime = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    //Счетчики каждого Probe; ссылка на сам Probe слабая, чтобы не удерживать блокировку. Все ниже - под монитором probes
+    private final Set<ProbeCounters> probes = new HashSet<>();
+    private final ReferenceQueue<Probe> collected = new ReferenceQueue<>();
+    //Итог Probe, уже собранных сборщиком мусора
+    private long retiredAcquisitions;
+    private long retiredContended;
+    private int retiredMaxQueueDepth;
+
+    private LockStats(String name) {
+        this.name = name;
+    }
+
+    //Статистика блокировок с этим именем, при первом обращении регистрируется в JMX
+    public static LockStats forName(String name) {
+        LockStats stats = REGISTRY.get(name);
+        if (stats != null) return stats;
+        LockStats created = new LockStats(name);
+        stats = REGISTRY.putIfAbsent(name, created);
+        if (stats != null) return stats;
+        Jmx.register(JMX_TYPE, name, created);
+        return created;
+    }
+
+    //Замер новой блокировки с итогами под именем владельца и типа; null, если статистика выключена
+    static Probe forLock(Object monitor, CounterType type) {
+        if (!ENABLED) return null;
+        String owner = monitor instanceof Class ? ((Class<?>) monitor).getSimpleName() + ".class" : monitor.getClass().getSimpleName();
+        return forName(owner + "/" + type.name()).newProbe();
+    }
+
+    //Один Probe на блокировку
+    public Probe newProbe() {
+        Probe probe = new Probe(this);
+        synchronized (probes) {
+            retire();
+            probes.add(new ProbeCounters(probe, collected));
+        }
+        return probe;
+    }
+
+    public static Map<String, Snapshot> snapshotAll() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        REGISTRY.forEach((name, stats) -> snapshots.put(name, stats.snapshot()));
+        return snapshots;
+    }
+
+    //Счетчики блокировок читаются без остановки захватов, поэтому снимок под нагрузкой приблизителен
+    public Snapshot snapshot() {
+        long acquisitions;
+        long contended;
+        int queueDepth = 0;
+        int maxQueueDepth;
+        synchronized (probes) {
+            retire();
+            acquisitions = retiredAcquisitions;
+            contended = retiredContended;
+            maxQueueDepth = retiredMaxQueueDepth;
+            for (ProbeCounters probe : probes) {
+                acquisitions += probe.acquisitions.get();
+                contended += probe.contended.get();
+                queueDepth += probe.queueDepth.get();
+                maxQueueDepth = Math.max(maxQueueDepth, probe.maxQueueDepth.get());
+            }
+        }
+        return new Snapshot(name, contended, Math.max(0, acquisitions - contended), queueDepth, maxQueueDepth,
+                waitTime.snapshot(), holdTime.snapshot());
+    }
+
+    //Переносит счетчики собранных Probe в итог; вызывается под монитором probes
+    private void retire() {
+        Reference<? extends Probe> reference;
+        while ((reference = collected.poll()) != null) {
+            ProbeCounters probe = (ProbeCounters) reference;
+            if (!probes.remove(probe)) continue;
+            retiredAcquisitions += probe.acquisitions.get();
+            retiredContended += probe.contended.get();
+            retiredMaxQueueDepth = Math.max(retiredMaxQueueDepth, probe.maxQueueDepth.get());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        Snapshot snapshot = snapshot();
+        return snapshot.contended() + snapshot.uncontended();
+    }
+
+    @Override
+    public long getContended() {
+        return snapshot().contended();
+    }
+
+    @Override
+    public long getUncontended() {
+        return snapshot().uncontended();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return snapshot().queueDepth();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return snapshot().maxQueueDepth();
+    }
+
+    @Override
+    public long getWaitP50() {
+        return waitTime.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getWaitP99() {
+        return waitTime.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getWaitMax() {
+        return waitTime.snapshot().max();
+    }
+
+    @Override
+    public long getHoldP50() {
+        return holdTime.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getHoldP99() {
+        return holdTime.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getHoldMax() {
+        return holdTime.snapshot().max();
+    }
+
+    //Текущая глубина очереди не сбрасывается: потоки в очереди еще вызовут released()
+    @Override
+    public void reset() {
+        waitTime.reset();
+        holdTime.reset();
+        synchronized (probes) {
+            retire();
+            retiredAcquisitions = 0;
+            retiredContended = 0;
+            retiredMaxQueueDepth = 0;
+            for (ProbeCounters probe : probes) {
+                probe.acquisitions.set(0);
+                probe.contended.set(0);
+                probe.maxQueueDepth.set(0);
+            }
+        }
+    }
+
+    //Счетчики Probe, доступные и после того, как сам Probe собран сборщиком мусора
+    private static final class ProbeCounters extends WeakReference<Probe> {
+
+        final AtomicInteger queueDepth;
+        final AtomicInteger maxQueueDepth;
+        final AtomicLong acquisitions;
+        final AtomicLong contended;
+
+        ProbeCounters(Probe probe, ReferenceQueue<Probe> queue) {
+            super(probe, queue);
+            queueDepth = probe.queueDepth;
+            maxQueueDepth = probe.maxQueueDepth;
+            acquisitions = probe.acquisitions;
+            contended = probe.contended;
+        }
+    }
+
+    /*
+    Замер одной блокировки, протокол вокруг захвата:
+    long start = probe.beforeAcquire(); захват; long acquired = probe.acquired(start); ...; освобождение; probe.released(acquired);
+    acquired() вызывается под блокировкой, поэтому числа захватов и конкурентных захватов пишутся без CAS;
+    признак конкурентного захвата передается из beforeAcquire() в метке.
+    */
+    public static final class Probe {
+
+        private final LockStats stats;
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong acquisitions = new AtomicLong();
+        private final AtomicLong contended = new AtomicLong();
+
+        private Probe(LockStats stats) {
+            this.stats = stats;
+        }
+
+        public LockStats stats() {
+            return stats;
+        }
+
+        public long beforeAcquire() {
+            int depth = queueDepth.getAndIncrement();
+            long mark = (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0 ? System.nanoTime() & ~CONTENDED : NOT_TIMED;
+            if (depth > 0) {
+                //CAS только при новой наибольшей глубине
+                int max;
+                while (depth + 1 > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth + 1)) {
+                    //повтор, пока другой поток не записал большую глубину
+                }
+                mark |= CONTENDED;
+            }
+            return mark;
+        }
+
+        public long acquired(long start) {
+            acquisitions.lazySet(acquisitions.get() + 1);
+            if ((start & CONTENDED) != 0) contended.lazySet(contended.get() + 1);
+            start &= ~CONTENDED;
+            if (start == NOT_TIMED) return NOT_TIMED;
+            long now = System.nanoTime();
+            stats.waitTime.record(now - start);
+            return now;
+        }
+
+        public void released(long acquired) {
+            if (acquired != NOT_TIMED) stats.holdTime.record(System.nanoTime() - acquired);
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    public static final class Snapshot {
+
+        private final String name;
+        private final long contended;
+        private final long uncontended;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final Histogram.Snapshot waitTime;
+        private final Histogram.Snapshot holdTime;
+
+        Snapshot(String name, long contended, long uncontended, int queueDepth, int maxQueueDepth,
+                 Histogram.Snapshot waitTime, Histogram.Snapshot holdTime) {
+            this.name = name;
+            this.contended = contended;
+            this.uncontended = uncontended;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.waitTime = waitTime;
+            this.holdTime = holdTime;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long contended() {
+            return contended;
+        }
+
+        public long uncontended() {
+            return uncontended;
+        }
+
+        public int queueDepth() {
+            return queueDepth;
+        }
+
+        public int maxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public Histogram.Snapshot waitTime() {
+            return waitTime;
+        }
+
+        public Histogram.Snapshot holdTime() {
+            return holdTime;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": contended=" + contended + " uncontended=" + uncontended + " maxQueueDepth=" + maxQueueDepth
+                    + "\n  wait " + waitTime + "\n  hold " + holdTime;
+        }
+    }
+
+}
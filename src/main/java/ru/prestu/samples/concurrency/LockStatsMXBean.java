@@ -0,0 +1,32 @@
+package ru.prestu.samples.concurrency;
+
+//Статистика блокировки в JMX: ru.prestu.samples:type=LockStats,name=<имя блокировки>, время в наносекундах
+public interface LockStatsMXBean {
+
+    String getName();
+
+    long getAcquisitions();
+
+    long getContended();
+
+    long getUncontended();
+
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    long getWaitP50();
+
+    long getWaitP99();
+
+    long getWaitMax();
+
+    long getHoldP50();
+
+    long getHoldP99();
+
+    long getHoldMax();
+
+    void reset();
+
+}
@@ -0,0 +1,60 @@
+package ru.prestu.samples.concurrency;
+
+//Пока один из потоков исполняет синхронизированный блок кода, другие потоки, подошедшие к исполнению этого кода, будут залочены
+class MonitorCounter implements Counter {
+
+    private final Object monitor;
+    //null, если статистика блокировок выключена
+    private final LockStats.Probe stats;
+    private volatile int i = 0;
+
+    MonitorCounter(Object monitor) {
+        this(monitor, null);
+    }
+
+    MonitorCounter(Object monitor, LockStats.Probe stats) {
+        this.monitor = monitor;
+        this.stats = stats;
+    }
+
+    @Override
+    public int getI() {
+        return i;
+    }
+
+    @Override
+    public void setI(int i) {
+        synchronized (monitor) {
+            this.i = i;
+        }
+    }
+
+    @Override
+    public void increaseI() {
+        if (stats != null) {
+            increaseIMeasured();
+            return;
+        }
+        //Синхронизация на уровне переданного объекта (экземпляра или класса)
+        long started;
+        synchronized (monitor) {
+            started = TraceRecorder.now();
+            i++;
+        }
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+    private void increaseIMeasured() {
+        long start = stats.beforeAcquire();
+        long acquired;
+        long started;
+        synchronized (monitor) {
+            acquired = stats.acquired(start);
+            started = TraceRecorder.now();
+            i++;
+        }
+        stats.released(acquired);
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+}
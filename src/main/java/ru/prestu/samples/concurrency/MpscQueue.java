@@ -0,0 +1,90 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+Ограниченная очередь для многих производителей и одного потребителя, без блокировок.
+* Производители занимают позицию CAS-ом по хвосту, затем публикуют элемент в ячейку
+* Потребитель видит занятую, но еще не опубликованную ячейку как null и коротко ждет, если хвост уже ушел дальше
+* producerLimit - кэш границы заполнения, чтобы производители не читали голову потребителя на каждой операции
+poll/take/drainTo можно вызывать только из одного потока.
+*/
+public class MpscQueue<E> implements BoundedQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final Sequence head = new Sequence(0);
+    private final Sequence tail = new Sequence(0);
+    private final Sequence producerLimit;
+
+    //Емкость округляется вверх до степени двойки
+    public MpscQueue(int capacity) {
+        int size = SpscRingBuffer.ceilingPowerOfTwo(capacity);
+        buffer = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        producerLimit = new Sequence(size);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        long t;
+        do {
+            t = tail.get();
+            long limit = producerLimit.get();
+            if (t >= limit) {
+                limit = head.get() + mask + 1;
+                if (t >= limit) return false;
+                producerLimit.lazySet(limit);
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        buffer.lazySet((int) t & mask, e);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        E e = buffer.get(index);
+        if (e == null) {
+            if (h == tail.get()) return null;
+            //Позиция занята, производитель вот-вот запишет элемент
+            while ((e = buffer.get(index)) == null) {
+                Thread.yield();
+            }
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    //Забирает подряд опубликованные элементы, голова сдвигается одной записью на весь пакет
+    @Override
+    public int drainTo(Collection<? super E> batch, int max) {
+        long h = head.get();
+        int count = 0;
+        while (count < max) {
+            int index = (int) (h + count) & mask;
+            E e = buffer.get(index);
+            if (e == null) break;
+            buffer.lazySet(index, null);
+            batch.add(e);
+            count++;
+        }
+        if (count > 0) head.lazySet(h + count);
+        return count;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head.get(), capacity()));
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+
+}
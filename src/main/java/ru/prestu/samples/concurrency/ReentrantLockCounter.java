@@ -0,0 +1,66 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+class ReentrantLockCounter implements Counter {
+
+    private final Lock lock = new ReentrantLock();
+    //null, если статистика блокировок выключена
+    private final LockStats.Probe stats;
+    private volatile int i = 0;
+
+    ReentrantLockCounter() {
+        this(null);
+    }
+
+    ReentrantLockCounter(LockStats.Probe stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public int getI() {
+        return i;
+    }
+
+    @Override
+    public void setI(int i) {
+        lock.lock();
+        try {
+            this.i = i;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void increaseI() {
+        if (stats != null) {
+            increaseIMeasured();
+            return;
+        }
+        lock.lock();
+        long started = TraceRecorder.now();
+        try {
+            i++;
+        } finally {
+            lock.unlock();
+        }
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+    private void increaseIMeasured() {
+        long start = stats.beforeAcquire();
+        lock.lock();
+        long acquired = stats.acquired(start);
+        long started = TraceRecorder.now();
+        try {
+            i++;
+        } finally {
+            lock.unlock();
+            stats.released(acquired);
+        }
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+}
@@ -0,0 +1,53 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/*
+Счетчик позиции очереди, окруженный полями-заполнителями.
+Голова и хвост очереди меняются разными потоками; без заполнения они могут оказаться в одной кэш-линии,
+и каждая запись одного потока будет сбрасывать кэш другого (false sharing).
+Поля родительского класса располагаются перед полями наследника, поэтому value отделено 56 байтами с каждой стороны.
+Рядом с value лежит cache - обычное поле для потока-владельца счетчика (например, кэш чужого индекса),
+так что оно делит кэш-линию только со своим счетчиком.
+*/
+final class Sequence extends SequenceValue {
+
+    long p11, p12, p13, p14, p15, p16, p17;
+
+    private static final AtomicLongFieldUpdater<SequenceValue> VALUE = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    Sequence(long initial) {
+        value = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    //Запись без полного барьера: предыдущие записи станут видны не позже нового значения
+    void lazySet(long newValue) {
+        VALUE.lazySet(this, newValue);
+    }
+
+    boolean compareAndSet(long expected, long newValue) {
+        return VALUE.compareAndSet(this, expected, newValue);
+    }
+
+    long cache() {
+        return cache;
+    }
+
+    void cache(long cache) {
+        this.cache = cache;
+    }
+
+}
+
+abstract class SequenceLhsPadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SequenceValue extends SequenceLhsPadding {
+    volatile long value;
+    long cache;
+}
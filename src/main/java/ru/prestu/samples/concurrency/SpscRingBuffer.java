@@ -0,0 +1,88 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.Collection;
+
+/*
+Кольцевой буфер для одного производителя и одного потребителя, без блокировок.
+* Хвост пишет только производитель, голову - только потребитель, поэтому CAS не нужен
+* Каждая сторона кэширует чужой индекс и перечитывает его, только когда кэша не хватает
+* Индексы выровнены против false sharing (см. Sequence), кэш чужого индекса лежит рядом со своим:
+  кэш головы - в Sequence хвоста (пишет производитель), кэш хвоста - в Sequence головы (пишет потребитель)
+Вызывать offer/put можно только из одного потока, poll/take/drainTo - тоже только из одного.
+*/
+public class SpscRingBuffer<E> implements BoundedQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final Sequence head = new Sequence(0);
+    private final Sequence tail = new Sequence(0);
+
+    //Емкость округляется вверх до степени двойки
+    public SpscRingBuffer(int capacity) {
+        int size = ceilingPowerOfTwo(capacity);
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        long t = tail.get();
+        if (t - tail.cache() > mask) {
+            long headCache = head.get();
+            tail.cache(headCache);
+            if (t - headCache > mask) return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= head.cache()) {
+            long tailCache = tail.get();
+            head.cache(tailCache);
+            if (h >= tailCache) return null;
+        }
+        int index = (int) h & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    //Хвост читается один раз, голова сдвигается одной записью на весь пакет
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> batch, int max) {
+        long h = head.get();
+        long available = tail.get() - h;
+        int count = (int) Math.min(available, max);
+        for (int k = 0; k < count; k++) {
+            int index = (int) (h + k) & mask;
+            batch.add((E) buffer[index]);
+            buffer[index] = null;
+        }
+        if (count > 0) head.lazySet(h + count);
+        return count;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head.get(), capacity()));
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+
+    static int ceilingPowerOfTwo(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Capacity " + capacity);
+        return capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+}
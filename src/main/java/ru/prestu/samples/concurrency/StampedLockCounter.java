@@ -0,0 +1,77 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.locks.StampedLock;
+
+class StampedLockCounter implements Counter {
+
+    private final StampedLock lock = new StampedLock();
+    //null, если статистика блокировок выключена
+    private final LockStats.Probe stats;
+    private int i = 0;
+
+    StampedLockCounter() {
+        this(null);
+    }
+
+    StampedLockCounter(LockStats.Probe stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public int getI() {
+        //Оптимистичное чтение без блокировки, если за время чтения была запись - читаем под блокировкой
+        long stamp = lock.tryOptimisticRead();
+        int result = i;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = i;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setI(int i) {
+        long stamp = lock.writeLock();
+        try {
+            this.i = i;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void increaseI() {
+        if (stats != null) {
+            increaseIMeasured();
+            return;
+        }
+        long stamp = lock.writeLock();
+        long started = TraceRecorder.now();
+        try {
+            i++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+    //Замеряется только запись: оптимистичное чтение блокировку не захватывает
+    private void increaseIMeasured() {
+        long start = stats.beforeAcquire();
+        long stamp = lock.writeLock();
+        long acquired = stats.acquired(start);
+        long started = TraceRecorder.now();
+        try {
+            i++;
+        } finally {
+            lock.unlockWrite(stamp);
+            stats.released(acquired);
+        }
+        TraceRecorder.record(TraceRecorder.Phase.STARTED, started);
+    }
+
+}
@@ -0,0 +1,33 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Каждый поток пишет в свою ячейку, ячейки выровнены против false sharing.
+getI суммирует ячейки, поэтому чтение дороже записи.
+setI не сбрасывает ячейки, а запоминает сдвиг относительно их суммы: инкремент, пришедший одновременно с setI,
+остается в ячейках и не теряется, он просто считается выполненным до или после setI.
+*/
+class StripedCounter implements Counter {
+
+    private final LongAdder increments = new LongAdder();
+    private volatile long offset;
+
+    @Override
+    public int getI() {
+        //Сначала сдвиг, потом сумма: при гонке с setI читается значение до него, а не смесь
+        long offset = this.offset;
+        return (int) (offset + increments.sum());
+    }
+
+    @Override
+    public synchronized void setI(int i) {
+        offset = i - increments.sum();
+    }
+
+    @Override
+    public void increaseI() {
+        increments.increment();
+    }
+
+}
@@ -3,25 +3,31 @@ package ru.prestu.samples.concurrency;
 //Пока один из потоков исполняет синхронизированный блок кода, другие потоки, подошедшие к исполнению этого кода, будут залочены
 public class SynchronizedResource {
 
-    private int i = 0;
+    private final Counter counter;
+
+    //MONITOR, а в режиме виртуальных потоков (Java 21+) - REENTRANT_LOCK, см. ExecutionMode
+    public SynchronizedResource() {
+        this(ExecutionMode.defaultCounterType());
+    }
+
+    //Реализация счетчика выбирается при создании, MONITOR синхронизируется на самом ресурсе
+    public SynchronizedResource(CounterType type) {
+        counter = type.create(this);
+    }
 
     public int getI() {
-        return i;
+        return counter.getI();
     }
 
-    //Синхронизированный метод
-    public synchronized void setI(int i) {
-        this.i = i;
+    public void setI(int i) {
+        counter.setI(i);
     }
 
     public void increaseI() {
-        System.out.println(Thread.currentThread().getName() + " in queue");
-        //Синхронизированный блок в методе, синхронизация на уровне объекта
-        synchronized(this) {
-            System.out.println(Thread.currentThread().getName() + " started");
-            i++;
-            System.out.println(Thread.currentThread().getName() + " finished");
-        }
+        //Трассировка пишется в кольцевой буфер без печати; время STARTED счетчик берет после захвата, а пишет после освобождения блокировки
+        TraceRecorder.record(TraceRecorder.Phase.IN_QUEUE);
+        counter.increaseI();
+        TraceRecorder.record(TraceRecorder.Phase.FINISHED);
     }
 
 }
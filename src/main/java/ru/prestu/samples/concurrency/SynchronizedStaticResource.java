@@ -2,25 +2,24 @@ package ru.prestu.samples.concurrency;
 
 public class SynchronizedStaticResource {
 
-    private static int i = 0;
+    //Реализация выбирается системным свойством samples.counter (имя из CounterType), MONITOR синхронизируется на уровне класса
+    //По умолчанию - ExecutionMode.defaultCounterType()
+    private static final Counter counter = CounterType.fromProperty("samples.counter", ExecutionMode.defaultCounterType())
+            .create(SynchronizedStaticResource.class);
 
     public static int getI() {
-        return i;
+        return counter.getI();
     }
 
-    //Синхронизированный метод
-    public synchronized static void setI(int i) {
-        SynchronizedStaticResource.i = i;
+    public static void setI(int i) {
+        counter.setI(i);
     }
 
     public static void increaseI() {
-        System.out.println(Thread.currentThread().getName() + " in queue");
-        //Синхронизированный блок в методе, синхронизация на уровне класса
-        synchronized(SynchronizedStaticResource.class) {
-            System.out.println(Thread.currentThread().getName() + " started");
-            i++;
-            System.out.println(Thread.currentThread().getName() + " finished");
-        }
+        //Трассировка пишется в кольцевой буфер без печати; время STARTED счетчик берет после захвата, а пишет после освобождения блокировки
+        TraceRecorder.record(TraceRecorder.Phase.IN_QUEUE);
+        counter.increaseI();
+        TraceRecorder.record(TraceRecorder.Phase.FINISHED);
     }
 
 }
@@ -0,0 +1,152 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*
+Асинхронная трассировка без аллокаций на горячем пути.
+* События (id потока, фаза, nanoTime) пишутся в заранее выделенный кольцевой буфер
+* Фоновый daemon-поток забирает события в порядке записи и печатает их в System.out
+* Если буфер заполнен, событие отбрасывается и учитывается в dropped(), пишущий поток никогда не ждет
+* Включается свойством -Dsamples.trace=true; по умолчанию record() сводится к проверке static final константы
+*/
+public final class TraceRecorder {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("samples.trace", "false"));
+
+    //Время STARTED блокирующие счетчики берут сразу после захвата, а событие пишут после освобождения;
+    //у ATOMIC и STRIPED ожидания нет и фазы тоже
+    public enum Phase {
+        IN_QUEUE("in queue"),
+        STARTED("started"),
+        FINISHED("finished");
+
+        private final String text;
+
+        Phase(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final int CAPACITY = 1 << 13;
+    private static final TraceRecorder INSTANCE = ENABLED ? new TraceRecorder(CAPACITY, System.out::println) : null;
+
+    static {
+        if (ENABLED) Runtime.getRuntime().addShutdownHook(new Thread(() -> INSTANCE.awaitDrained(TimeUnit.MILLISECONDS.toNanos(200))));
+    }
+
+    private final int mask;
+    private final Consumer<String> sink;
+    private final long[] threadIds;
+    private final String[] threadNames;
+    private final int[] phases;
+    private final long[] times;
+    //Номер последовательности, опубликованной в слоте; -1, пока слот пуст
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainer;
+    private volatile boolean stopped;
+
+    //capacity - степень двойки; sink получает строки событий в потоке trace-drainer
+    TraceRecorder(int capacity, Consumer<String> sink) {
+        mask = capacity - 1;
+        this.sink = sink;
+        threadIds = new long[capacity];
+        threadNames = new String[capacity];
+        phases = new int[capacity];
+        times = new long[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) published.set(slot, -1);
+        drainer = new Thread(this::drainLoop, "trace-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    public static void record(Phase phase) {
+        if (ENABLED) INSTANCE.add(phase, System.nanoTime());
+    }
+
+    //Событие с заранее взятым временем now(), чтобы под блокировкой оставалось только чтение часов
+    public static void record(Phase phase, long time) {
+        if (ENABLED) INSTANCE.add(phase, time);
+    }
+
+    //0 без трассировки: выключенная трассировка не читает часы
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    //Ожидание, пока фоновый поток напечатает все записанные события
+    public static void flush() {
+        if (ENABLED) INSTANCE.awaitDrained(TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public static long dropped() {
+        return ENABLED ? INSTANCE.droppedEvents() : 0;
+    }
+
+    long droppedEvents() {
+        return dropped.get();
+    }
+
+    //Останавливает фоновый поток после печати уже записанных событий
+    void stop() throws InterruptedException {
+        awaitDrained(TimeUnit.SECONDS.toNanos(1));
+        stopped = true;
+        drainer.join();
+    }
+
+    void add(Phase phase) {
+        add(phase, System.nanoTime());
+    }
+
+    void add(Phase phase, long time) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        Thread thread = Thread.currentThread();
+        threadIds[slot] = thread.getId();
+        threadNames[slot] = thread.getName();
+        phases[slot] = phase.ordinal();
+        times[slot] = time;
+        published.lazySet(slot, sequence);
+    }
+
+    private void drainLoop() {
+        long next = 0;
+        while (!stopped) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            long threadId = threadIds[slot];
+            String threadName = threadNames[slot];
+            Phase phase = PHASES[phases[slot]];
+            long time = times[slot];
+            threadNames[slot] = null;
+            consumed.lazySet(++next);
+            sink.accept(time + " [" + threadId + "] " + threadName + " " + phase.text);
+        }
+    }
+
+    void awaitDrained(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (consumed.get() < claimed.get() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Что делает поток, когда очередь пуста (или заполнена):
+* SPIN - активное ожидание, минимальная задержка, но ядро занято полностью
+* YIELD - короткое активное ожидание, затем Thread.yield()
+* PARK - активное ожидание, yield, затем засыпание на микросекунды; почти не тратит процессор
+*/
+public enum WaitStrategy {
+
+    SPIN {
+        @Override
+        public int idle(int attempt) {
+            return attempt + 1;
+        }
+    },
+    YIELD {
+        @Override
+        public int idle(int attempt) {
+            if (attempt >= SPIN_TRIES) Thread.yield();
+            return attempt + 1;
+        }
+    },
+    PARK {
+        @Override
+        public int idle(int attempt) {
+            if (attempt >= SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (attempt >= SPIN_TRIES) {
+                Thread.yield();
+            }
+            return attempt + 1;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 10_000;
+
+    //attempt - номер неудачной попытки подряд, начиная с 0; возвращает следующий номер
+    public abstract int idle(int attempt);
+
+}
@@ -0,0 +1,203 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+Исполнение задач Runnable/Callable (как MyRunnable и MyCallable) на пуле ForkJoinPool вместо потока на задачу.
+* У каждого рабочего потока своя очередь задач, свободный поток забирает (крадет) задачи у занятых
+* Результат - CompletableFuture, который можно комбинировать (thenApply, thenCombine, allOf...)
+* submitAll/runAll принимают пакет задач одним вызовом: пакет делится пополам прямо в рабочих потоках,
+  и половины расходятся по очередям потоков без участия вызывающего потока
+* Ожидание завершения - по future пакета или awaitQuiescence, без join() для каждого потока
+*/
+public class WorkStealingExecutor implements AutoCloseable {
+
+    //Сколько листовых пакетов приходится на один рабочий поток, больше - лучше балансировка, меньше - меньше накладных расходов
+    private static final int SPLITS_PER_WORKER = 8;
+
+    private final ForkJoinPool pool;
+
+    public WorkStealingExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public WorkStealingExecutor(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public CompletableFuture<Void> submit(Runnable task) {
+        return CompletableFuture.runAsync(task, pool);
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pool.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    //Результаты в порядке задач; при ошибке future завершается исключением задачи с наименьшим номером,
+    //независимо от того, какая упала раньше по времени; остальные задачи все равно выполняются
+    public <T> CompletableFuture<List<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        List<Callable<T>> list = new ArrayList<>(tasks);
+        Object[] results = new Object[list.size()];
+        BatchTask batch = new BatchTask(list.size(), leafSize(list.size())) {
+            @Override
+            void run(int index) throws Exception {
+                results[index] = list.get(index).call();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            void done(Throwable failure) {
+                if (failure != null) {
+                    future.completeExceptionally(failure);
+                } else {
+                    future.complete((List<T>) Arrays.asList(results));
+                }
+            }
+        };
+        pool.execute(batch.root());
+        return future;
+    }
+
+    public CompletableFuture<Void> runAll(Collection<? extends Runnable> tasks) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        List<Runnable> list = new ArrayList<>(tasks);
+        BatchTask batch = new BatchTask(list.size(), leafSize(list.size())) {
+            @Override
+            void run(int index) {
+                list.get(index).run();
+            }
+
+            @Override
+            void done(Throwable failure) {
+                if (failure != null) {
+                    future.completeExceptionally(failure);
+                } else {
+                    future.complete(null);
+                }
+            }
+        };
+        pool.execute(batch.root());
+        return future;
+    }
+
+    //Ждет, пока в пуле не останется ни выполняющихся, ни ожидающих задач
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) {
+        return pool.awaitQuiescence(timeout, unit);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    //Новые задачи не принимаются, уже отправленные дорабатывают
+    //При прерывании ожидание заканчивается, флаг прерывания восстанавливается, задачи дорабатывают без ожидания
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int leafSize(int tasks) {
+        return Math.max(1, tasks / (pool.getParallelism() * SPLITS_PER_WORKER));
+    }
+
+    private abstract static class BatchTask {
+
+        private final int size;
+        private final int leafSize;
+        //Ошибка задачи с наименьшим номером
+        private final AtomicReference<Failure> failure = new AtomicReference<>();
+
+        BatchTask(int size, int leafSize) {
+            this.size = size;
+            this.leafSize = leafSize;
+        }
+
+        abstract void run(int index) throws Exception;
+
+        abstract void done(Throwable failure);
+
+        RecursiveAction root() {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    new Range(0, size).invoke();
+                    Failure first = failure.get();
+                    done(first == null ? null : first.error);
+                }
+            };
+        }
+
+        private void failed(int index, Throwable error) {
+            Failure candidate = new Failure(index, error);
+            Failure current;
+            do {
+                current = failure.get();
+                if (current != null && current.index < index) return;
+            } while (!failure.compareAndSet(current, candidate));
+        }
+
+        private static final class Failure {
+
+            final int index;
+            final Throwable error;
+
+            Failure(int index, Throwable error) {
+                this.index = index;
+                this.error = error;
+            }
+        }
+
+        private class Range extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+
+            Range(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= leafSize) {
+                    for (int index = from; index < to; index++) {
+                        try {
+                            run(index);
+                        } catch (Throwable e) {
+                            failed(index, e);
+                        }
+                    }
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new Range(from, middle), new Range(middle, to));
+                }
+            }
+        }
+    }
+
+}
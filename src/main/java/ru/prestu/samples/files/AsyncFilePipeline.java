@@ -0,0 +1,326 @@
+package ru.prestu.samples.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/*
+Конвейер чтение - преобразование - запись на AsynchronousFileChannel.
+* Поток на файл не нужен: операции завершаются в обработчиках CompletionHandler на потоках группы каналов
+* Файл читается частями размером с буфер пула, до readAhead частей одного файла находятся в работе одновременно
+* Общий лимит байт в работе по всем файлам: при его исчерпании файл ждет, пока другие вернут буферы (backpressure)
+* Части пишутся строго по порядку, поэтому преобразование может менять размер части
+* Буферы берутся из DirectBufferPool и возвращаются после записи
+Если передать однопоточный executor, один поток обслуживает все файлы конвейера.
+*/
+public class AsyncFilePipeline {
+
+    private static final Set<StandardOpenOption> READ_OPTIONS = EnumSet.of(StandardOpenOption.READ);
+    private static final Set<StandardOpenOption> WRITE_OPTIONS = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private final DirectBufferPool buffers;
+    private final int readAhead;
+    private final long maxInFlightBytes;
+    private final ExecutorService executor;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final Queue<Job> waiting = new ConcurrentLinkedQueue<>();
+
+    public AsyncFilePipeline(DirectBufferPool buffers, int readAhead, long maxInFlightBytes) {
+        this(buffers, readAhead, maxInFlightBytes, null);
+    }
+
+    //executor == null - группа каналов по умолчанию
+    public AsyncFilePipeline(DirectBufferPool buffers, int readAhead, long maxInFlightBytes, ExecutorService executor) {
+        if (readAhead <= 0) throw new IllegalArgumentException("Read-ahead " + readAhead);
+        if (maxInFlightBytes < buffers.bufferSize()) throw new IllegalArgumentException("In-flight limit " + maxInFlightBytes + " is less than buffer size");
+        this.buffers = buffers;
+        this.readAhead = readAhead;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<Long> copy(Path source, Path target) {
+        return transform(source, target, UnaryOperator.identity());
+    }
+
+    /*
+    transformer получает прочитанную часть, готовую к чтению, и возвращает данные для записи.
+    Можно изменить буфер на месте и вернуть его же; другой возвращенный буфер в пул не попадает.
+    Результат - число записанных байт.
+    */
+    public CompletableFuture<Long> transform(Path source, Path target, UnaryOperator<ByteBuffer> transformer) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel in = AsynchronousFileChannel.open(source, READ_OPTIONS, executor);
+            AsynchronousFileChannel out;
+            try {
+                out = AsynchronousFileChannel.open(target, WRITE_OPTIONS, executor);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            new Job(in, out, in.size(), transformer, result).start();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public long inFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public static CompletableFuture<Integer> read(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        channel.read(buffer, position, future, FutureHandler.INSTANCE);
+        return future;
+    }
+
+    public static CompletableFuture<Integer> write(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        channel.write(buffer, position, future, FutureHandler.INSTANCE);
+        return future;
+    }
+
+    private enum FutureHandler implements CompletionHandler<Integer, CompletableFuture<Integer>> {
+        INSTANCE;
+
+        @Override
+        public void completed(Integer result, CompletableFuture<Integer> future) {
+            future.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable e, CompletableFuture<Integer> future) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private boolean reserve() {
+        long current;
+        do {
+            current = inFlightBytes.get();
+            if (current + buffers.bufferSize() > maxInFlightBytes) return false;
+        } while (!inFlightBytes.compareAndSet(current, current + buffers.bufferSize()));
+        return true;
+    }
+
+    //Вызывается вне блокировок задач: ожидающие задачи продолжают чтение в этом же потоке
+    private void unreserve() {
+        inFlightBytes.addAndGet(-buffers.bufferSize());
+        //Задача, снова не получившая лимит, встает в конец очереди, поэтому обходится не больше текущего размера
+        for (int k = waiting.size(); k > 0; k--) {
+            Job job = waiting.poll();
+            if (job == null) break;
+            job.pump();
+        }
+    }
+
+    private static final class Chunk {
+
+        final long index;
+        final long position;
+        final ByteBuffer buffer;
+        ByteBuffer output;
+        long target;
+
+        Chunk(long index, long position, ByteBuffer buffer) {
+            this.index = index;
+            this.position = position;
+            this.buffer = buffer;
+        }
+    }
+
+    private final class Job {
+
+        private final AsynchronousFileChannel in;
+        private final AsynchronousFileChannel out;
+        private final long size;
+        private final long chunkCount;
+        private final UnaryOperator<ByteBuffer> transformer;
+        private final CompletableFuture<Long> result;
+        private final CompletionHandler<Integer, Chunk> readHandler = new ReadHandler();
+        private final CompletionHandler<Integer, Chunk> writeHandler = new WriteHandler();
+
+        //Прочитанные части, ждущие своей очереди на запись
+        private final Map<Long, Chunk> ready = new HashMap<>();
+        private long nextRead;
+        private long nextChunk;
+        private long nextWrite;
+        private long writePosition;
+        private int inFlightChunks;
+        private boolean writing;
+        private boolean done;
+
+        Job(AsynchronousFileChannel in, AsynchronousFileChannel out, long size, UnaryOperator<ByteBuffer> transformer, CompletableFuture<Long> result) {
+            this.in = in;
+            this.out = out;
+            this.size = size;
+            this.chunkCount = (size + buffers.bufferSize() - 1) / buffers.bufferSize();
+            this.transformer = transformer;
+            this.result = result;
+        }
+
+        void start() {
+            if (chunkCount == 0) finish();
+            else pump();
+        }
+
+        //Запускает чтения, пока позволяют глубина упреждения и общий лимит
+        synchronized void pump() {
+            while (!done && inFlightChunks < readAhead && nextRead < size) {
+                if (!reserve()) {
+                    waiting.add(this);
+                    //Лимит мог освободиться до постановки в очередь
+                    if (!reserve()) return;
+                    waiting.remove(this);
+                }
+                int length = (int) Math.min(buffers.bufferSize(), size - nextRead);
+                ByteBuffer buffer = buffers.acquire();
+                buffer.limit(length);
+                Chunk chunk = new Chunk(nextChunk++, nextRead, buffer);
+                nextRead += length;
+                inFlightChunks++;
+                in.read(buffer, chunk.position, chunk, readHandler);
+            }
+        }
+
+        void writeNext() {
+            Chunk chunk;
+            synchronized (this) {
+                if (done || writing) return;
+                chunk = ready.remove(nextWrite);
+                if (chunk == null) return;
+                writing = true;
+                chunk.target = writePosition;
+            }
+            out.write(chunk.output, chunk.target, chunk, writeHandler);
+        }
+
+        void finish() {
+            synchronized (this) {
+                done = true;
+            }
+            try {
+                closeChannels();
+                result.complete(writePosition);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        void fail(Throwable e, Chunk chunk) {
+            List<Chunk> dropped;
+            boolean first;
+            synchronized (this) {
+                first = !done;
+                done = true;
+                dropped = new ArrayList<>(ready.values());
+                ready.clear();
+            }
+            release(chunk);
+            dropped.forEach(this::release);
+            if (first) {
+                try {
+                    closeChannels();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                result.completeExceptionally(e);
+            }
+        }
+
+        void release(Chunk chunk) {
+            buffers.release(chunk.buffer);
+            unreserve();
+        }
+
+        void closeChannels() throws IOException {
+            try {
+                in.close();
+            } finally {
+                out.close();
+            }
+        }
+
+        private final class ReadHandler implements CompletionHandler<Integer, Chunk> {
+
+            @Override
+            public void completed(Integer read, Chunk chunk) {
+                ByteBuffer buffer = chunk.buffer;
+                //Неполное чтение: дочитываем остаток части; -1 - файл укоротился, пишем что есть
+                if (read >= 0 && buffer.hasRemaining()) {
+                    in.read(buffer, chunk.position + buffer.position(), chunk, this);
+                    return;
+                }
+                buffer.flip();
+                try {
+                    chunk.output = transformer.apply(buffer);
+                } catch (RuntimeException e) {
+                    fail(e, chunk);
+                    return;
+                }
+                boolean dropped;
+                synchronized (Job.this) {
+                    dropped = done;
+                    if (!dropped) ready.put(chunk.index, chunk);
+                }
+                if (dropped) release(chunk);
+                else writeNext();
+            }
+
+            @Override
+            public void failed(Throwable e, Chunk chunk) {
+                fail(e, chunk);
+            }
+        }
+
+        private final class WriteHandler implements CompletionHandler<Integer, Chunk> {
+
+            @Override
+            public void completed(Integer written, Chunk chunk) {
+                chunk.target += written;
+                if (chunk.output.hasRemaining()) {
+                    out.write(chunk.output, chunk.target, chunk, this);
+                    return;
+                }
+                boolean finished;
+                synchronized (Job.this) {
+                    writing = false;
+                    writePosition = chunk.target;
+                    nextWrite++;
+                    inFlightChunks--;
+                    finished = nextWrite == chunkCount;
+                }
+                release(chunk);
+                if (finished) {
+                    finish();
+                } else {
+                    writeNext();
+                    pump();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Chunk chunk) {
+                fail(e, chunk);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package ru.prestu.samples.files;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Разбор на токены прямо по байтам, без Reader и без String на каждый токен.
+* Источник - ByteBuffer (в том числе direct) или файл, отображаемый в память окнами по windowSize байт
+* Токен - срез: tokenOffset()/tokenLength(); строка создается только по запросу sval()
+* Числа разбираются из байтов: intValue(), longValue(), doubleValue()
+Типы токенов как у StreamTokenizer: TT_WORD, TT_NUMBER, TT_EOF, для остальных символов - код символа.
+Отличия от StreamTokenizer: нет комментариев и строк в кавычках, буквой считается любой байт >= 0x80 (UTF-8).
+*/
+public class ByteTokenizer implements Closeable {
+
+    public static final int TT_EOF = StreamTokenizer.TT_EOF;
+    public static final int TT_WORD = StreamTokenizer.TT_WORD;
+    public static final int TT_NUMBER = StreamTokenizer.TT_NUMBER;
+
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    //Степени десяти, точно представимые в double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private ByteBuffer window;
+    private long windowStart;
+    private int position;
+
+    private int ttype;
+    private int tokenStart;
+    private int tokenEnd;
+
+    public ByteTokenizer(ByteBuffer buffer) {
+        channel = null;
+        window = buffer.slice();
+        size = window.limit();
+        windowSize = window.limit();
+    }
+
+    private ByteTokenizer(FileChannel channel, int windowSize) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+    }
+
+    public static ByteTokenizer open(Path file) throws IOException {
+        return open(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    //Токен должен быть короче окна
+    public static ByteTokenizer open(Path file, int windowSize) throws IOException {
+        return new ByteTokenizer(FileChannel.open(file, StandardOpenOption.READ), windowSize);
+    }
+
+    public int nextToken() throws IOException {
+        for (;;) {
+            while (position < window.limit() && (window.get(position) & 0xFF) <= ' ') position++;
+            if (position < window.limit()) break;
+            if (!hasMoreWindows()) return ttype = TT_EOF;
+            map(windowStart + position);
+        }
+        for (;;) {
+            int start = position;
+            int b = window.get(start) & 0xFF;
+            int end;
+            int type;
+            if (isNumberStart(start)) {
+                type = TT_NUMBER;
+                end = scanNumber(start);
+            } else if (isWordStart(b)) {
+                type = TT_WORD;
+                end = scanWord(start + 1);
+            } else {
+                type = b;
+                end = start + 1;
+            }
+            //Токен уперся в конец окна: окно сдвигается на начало токена и токен разбирается заново
+            if (end == window.limit() && hasMoreWindows()) {
+                if (start == 0) throw new IOException("Token at " + windowStart + " is longer than the window of " + windowSize + " bytes");
+                map(windowStart + start);
+                continue;
+            }
+            ttype = type;
+            tokenStart = start;
+            tokenEnd = end;
+            position = end;
+            return ttype;
+        }
+    }
+
+    public int ttype() {
+        return ttype;
+    }
+
+    //Смещение токена от начала источника
+    public long tokenOffset() {
+        return windowStart + tokenStart;
+    }
+
+    public int tokenLength() {
+        return tokenEnd - tokenStart;
+    }
+
+    public boolean tokenEquals(byte[] bytes) {
+        if (bytes.length != tokenLength()) return false;
+        for (int k = 0; k < bytes.length; k++) {
+            if (window.get(tokenStart + k) != bytes[k]) return false;
+        }
+        return true;
+    }
+
+    //Копирует байты токена в dst, возвращает их число
+    public int copyToken(byte[] dst) {
+        int length = tokenLength();
+        for (int k = 0; k < length; k++) {
+            dst[k] = window.get(tokenStart + k);
+        }
+        return length;
+    }
+
+    //Создает строку, в отличие от остальных методов
+    public String sval() {
+        byte[] bytes = new byte[tokenLength()];
+        copyToken(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int intValue() {
+        long value = longValue();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new NumberFormatException("Out of int range: " + sval());
+        return (int) value;
+    }
+
+    //Только для целых чисел; накопление в отрицательную сторону, как в Long.parseLong, чтобы уместить Long.MIN_VALUE
+    public long longValue() {
+        int k = tokenStart;
+        boolean negative = window.get(k) == '-';
+        if (negative || window.get(k) == '+') k++;
+        if (k == tokenEnd) throw new NumberFormatException("Not a number: " + sval());
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (; k < tokenEnd; k++) {
+            int digit = window.get(k) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Not an integer: " + sval());
+            if (result < (limit + digit) / 10) throw new NumberFormatException("Out of long range: " + sval());
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /*
+    Мантисса до 18 цифр (всегда меньше Long.MAX_VALUE) и десятичный порядок собираются без строки.
+    Если мантисса не больше 2^53, а порядок не больше 22, результат точен (одно умножение или деление точных чисел).
+    Иначе, редко, используется Double.parseDouble.
+    */
+    public double doubleValue() {
+        int k = tokenStart;
+        boolean negative = window.get(k) == '-';
+        if (negative || window.get(k) == '+') k++;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        boolean fraction = false;
+        for (; k < tokenEnd; k++) {
+            byte b = window.get(k);
+            if (b == '.') {
+                fraction = true;
+            } else if (b >= '0' && b <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) digits++;
+                    if (fraction) exponent--;
+                } else {
+                    exact = false;
+                    if (!fraction) exponent++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (k < tokenEnd) {
+            //Экспонента: e или E, затем знак и цифры
+            k++;
+            boolean negativeExponent = k < tokenEnd && window.get(k) == '-';
+            if (k < tokenEnd && (window.get(k) == '-' || window.get(k) == '+')) k++;
+            int value = 0;
+            for (; k < tokenEnd; k++) {
+                value = Math.min(value * 10 + (window.get(k) - '0'), 100_000);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (exact && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+            double result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -result : result;
+        }
+        return Double.parseDouble(sval());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+
+    private boolean hasMoreWindows() {
+        return windowStart + window.limit() < size;
+    }
+
+    private void map(long start) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+        windowStart = start;
+        position = 0;
+    }
+
+    private static boolean isWordStart(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_' || b >= 0x80;
+    }
+
+    private static boolean isDigit(int b) {
+        return b >= '0' && b <= '9';
+    }
+
+    //Цифра, либо '-' или '.', за которыми идет цифра
+    private boolean isNumberStart(int start) {
+        int b = window.get(start);
+        if (isDigit(b)) return true;
+        int next = start + 1 < window.limit() ? window.get(start + 1) : -1;
+        if (b == '.') return isDigit(next);
+        if (b == '-') {
+            if (isDigit(next)) return true;
+            return next == '.' && start + 2 < window.limit() && isDigit(window.get(start + 2));
+        }
+        return false;
+    }
+
+    //Как в StreamTokenizer, внутри слова допустимы цифры, '.' и '-'
+    private int scanWord(int from) {
+        int k = from;
+        while (k < window.limit()) {
+            int b = window.get(k) & 0xFF;
+            if (!isWordStart(b) && !isDigit(b) && b != '.' && b != '-') break;
+            k++;
+        }
+        return k;
+    }
+
+    //[-]цифры[.цифры][(e|E)[+|-]цифры]
+    private int scanNumber(int start) {
+        int limit = window.limit();
+        int k = start;
+        if (window.get(k) == '-') k++;
+        while (k < limit && isDigit(window.get(k))) k++;
+        if (k < limit && window.get(k) == '.') {
+            k++;
+            while (k < limit && isDigit(window.get(k))) k++;
+        }
+        if (k < limit && (window.get(k) == 'e' || window.get(k) == 'E')) {
+            int exponent = k + 1;
+            if (exponent < limit && (window.get(exponent) == '-' || window.get(exponent) == '+')) exponent++;
+            if (exponent < limit && isDigit(window.get(exponent))) {
+                k = exponent;
+                while (k < limit && isDigit(window.get(k))) k++;
+            } else if (exponent >= limit) {
+                //Экспонента может продолжиться в следующем окне
+                return limit;
+            }
+        }
+        return k;
+    }
+
+}
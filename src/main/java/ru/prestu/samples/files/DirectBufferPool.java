@@ -0,0 +1,50 @@
+package ru.prestu.samples.files;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+Пул direct-буферов одного размера.
+Выделение direct-памяти дорогое и освобождается она только сборщиком мусора, поэтому буферы для ввода-вывода переиспользуются.
+acquire() отдает очищенный буфер из пула или новый, release() возвращает буфер; при переполнении пула буфер отдается сборщику мусора.
+Буферы другого размера и heap-буферы в пул не принимаются.
+*/
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> free;
+
+    public DirectBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size " + bufferSize);
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize) free.offer(buffer);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    //Сколько буферов пул может хранить
+    public int capacity() {
+        return capacity;
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+}
@@ -0,0 +1,105 @@
+package ru.prestu.samples.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Копирование без промежуточного буфера в куче: FileChannel.transferTo/transferFrom.
+* Ядро копирует данные между файлом и файлом или сокетом (sendfile/copy_file_range), не поднимая их в пространство пользователя
+* Один вызов может передать меньше запрошенного, поэтому передача идет в цикле; за вызов запрашивается не больше MAX_TRANSFER,
+  так что файлы больше 2 ГБ передаются частями
+* Если канал не передает ничего (transferTo вернул 0 до конца файла), копирование продолжается циклом через direct-буферы из пула
+Каналы-получатели и источники должны быть блокирующими.
+*/
+public final class FileTransfer {
+
+    //Linux передает за один sendfile не больше ~2 ГБ
+    static final long MAX_TRANSFER = 1L << 30;
+    private static final DirectBufferPool BUFFERS = new DirectBufferPool(256 * 1024, 8);
+
+    private FileTransfer() {
+    }
+
+    public static long copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return transferTo(in, 0, in.size(), out);
+        }
+    }
+
+    //Весь файл, например в сокет
+    public static long transferTo(Path source, WritableByteChannel target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            return transferTo(in, 0, in.size(), target);
+        }
+    }
+
+    //count байт файла с позиции position; меньше, только если файл закончился раньше
+    public static long transferTo(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = source.transferTo(position + done, Math.min(count - done, MAX_TRANSFER), target);
+            if (transferred <= 0) {
+                if (position + done >= source.size()) break;
+                return done + copyBuffered(source, position + done, count - done, target);
+            }
+            done += transferred;
+        }
+        return done;
+    }
+
+    //До count байт из source в файл с позиции position; меньше, если source закончился раньше
+    public static long transferFrom(ReadableByteChannel source, FileChannel target, long position, long count) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = target.transferFrom(source, position + done, Math.min(count - done, MAX_TRANSFER));
+            //0 - конец источника или канал, который не умеет transferFrom; буферный цикл различает эти случаи
+            if (transferred <= 0) return done + copyBuffered(source, target, position + done, count - done);
+            done += transferred;
+        }
+        return done;
+    }
+
+    static long copyBuffered(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = BUFFERS.acquire();
+        try {
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                if (count - done < buffer.capacity()) buffer.limit((int) (count - done));
+                int read = source.read(buffer, position + done);
+                if (read < 0) break;
+                buffer.flip();
+                while (buffer.hasRemaining()) target.write(buffer);
+                done += read;
+            }
+            return done;
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+
+    static long copyBuffered(ReadableByteChannel source, FileChannel target, long position, long count) throws IOException {
+        ByteBuffer buffer = BUFFERS.acquire();
+        try {
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                if (count - done < buffer.capacity()) buffer.limit((int) (count - done));
+                int read = source.read(buffer);
+                if (read < 0) break;
+                buffer.flip();
+                while (buffer.hasRemaining()) done += target.write(buffer, position + done);
+            }
+            return done;
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package ru.prestu.samples.files;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+Параллельная обработка большого файла по частям.
+* Файл делится на части около chunkSize байт, границы сдвигаются на начало следующей строки
+* Каждая часть отображается в память отдельно и обрабатывается задачей ForkJoinPool
+* Результаты частей объединяются combiner-ом в порядке следования частей в файле
+* lines() - Stream строк, Spliterator которого делится по байтовым диапазонам, поэтому parallel() распределяет работу равномерно
+Строки разделяются '\n', завершающий '\r' отбрасывается.
+*/
+public class ParallelFileProcessor {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final int ALIGN_BUFFER = 8 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ParallelFileProcessor() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    //Строка должна помещаться в часть, часть - в одно отображение
+    public ParallelFileProcessor(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException("Chunk size " + chunkSize);
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    //chunkProcessor получает отображение части, состоящей из целых строк
+    public <R> R process(Path file, Function<ByteBuffer, R> chunkProcessor, BinaryOperator<R> combiner) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            if (bounds.length == 1) return chunkProcessor.apply(ByteBuffer.allocate(0));
+            return pool.invoke(new ChunkTask<>(channel, bounds, 0, bounds.length - 1, chunkProcessor, combiner));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    //Свертка по строкам: строка передается как срез без перевода строки, срез переиспользуется, ее нельзя сохранять
+    public <A> A reduceLines(Path file, Supplier<A> supplier, BiConsumer<A, ByteBuffer> lineConsumer, BinaryOperator<A> combiner) throws IOException {
+        return process(file, chunk -> {
+            A accumulator = supplier.get();
+            forEachLine(chunk, line -> lineConsumer.accept(accumulator, line));
+            return accumulator;
+        }, combiner);
+    }
+
+    //Поток строк файла; для параллельной обработки вызовите parallel(), файл закрывается в close() потока
+    public Stream<String> lines(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return StreamSupport.stream(new LineSpliterator(channel, 0, channel.size()), false)
+                .onClose(() -> {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    static void forEachLine(ByteBuffer chunk, Consumer<ByteBuffer> consumer) {
+        ByteBuffer line = chunk.duplicate();
+        int start = chunk.position();
+        int limit = chunk.limit();
+        for (int k = start; k < limit; k++) {
+            if (chunk.get(k) == '\n') {
+                accept(chunk, line, start, k, consumer);
+                start = k + 1;
+            }
+        }
+        if (start < limit) accept(chunk, line, start, limit, consumer);
+    }
+
+    private static void accept(ByteBuffer chunk, ByteBuffer line, int start, int end, Consumer<ByteBuffer> consumer) {
+        if (end > start && chunk.get(end - 1) == '\r') end--;
+        line.limit(end);
+        line.position(start);
+        consumer.accept(line);
+    }
+
+    //Границы частей: 0, начала строк после каждых chunkSize байт, размер файла
+    private long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long previous = 0;
+        while (previous < size) {
+            long next = size - previous <= chunkSize ? size : lineStartAfter(channel, previous + chunkSize, size);
+            if (next - previous > MAX_CHUNK_SIZE) throw new IOException("Line at " + previous + " does not fit into a chunk");
+            bounds.add(next);
+            previous = next;
+        }
+        long[] result = new long[bounds.size()];
+        for (int k = 0; k < result.length; k++) result[k] = bounds.get(k);
+        return result;
+    }
+
+    //Позиция после первого '\n', начиная с from, или конец диапазона
+    static long lineStartAfter(FileChannel channel, long from, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ALIGN_BUFFER);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            for (int k = 0; k < read; k++) {
+                if (buffer.get(k) == '\n') return Math.min(position + k + 1, end);
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    private static final class ChunkTask<R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Function<ByteBuffer, R> chunkProcessor;
+        private final BinaryOperator<R> combiner;
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to, Function<ByteBuffer, R> chunkProcessor, BinaryOperator<R> combiner) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.chunkProcessor = chunkProcessor;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) {
+                try {
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[from], bounds[to] - bounds[from]);
+                    return chunkProcessor.apply(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask<R> right = new ChunkTask<>(channel, bounds, middle, to, chunkProcessor, combiner);
+            right.fork();
+            R left = new ChunkTask<>(channel, bounds, from, middle, chunkProcessor, combiner).compute();
+            return combiner.apply(left, right.join());
+        }
+    }
+
+    /*
+    Spliterator строк по диапазону байт [position, end), где position всегда начало строки.
+    trySplit делит оставшийся диапазон пополам по границе строки, пока чтение еще не началось.
+    Чтение идет окнами до chunkSize байт, окно обрезается по последнему '\n'.
+    */
+    private final class LineSpliterator implements Spliterator<String> {
+
+        private static final long MIN_SPLIT = 64 * 1024;
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private ByteBuffer window;
+
+        LineSpliterator(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            if (window == null || !window.hasRemaining()) {
+                if (position >= end) return false;
+                window = nextWindow();
+            }
+            int start = window.position();
+            int limit = window.limit();
+            int k = start;
+            while (k < limit && window.get(k) != '\n') k++;
+            int lineEnd = k;
+            if (lineEnd > start && window.get(lineEnd - 1) == '\r') lineEnd--;
+            byte[] bytes = new byte[lineEnd - start];
+            window.get(bytes);
+            window.position(Math.min(k + 1, limit));
+            action.accept(new String(bytes, StandardCharsets.UTF_8));
+            return true;
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            if (window != null || end - position < MIN_SPLIT) return null;
+            try {
+                long middle = lineStartAfter(channel, position + (end - position) / 2, end);
+                if (middle >= end) return null;
+                LineSpliterator prefix = new LineSpliterator(channel, position, middle);
+                position = middle;
+                return prefix;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - position + (window == null ? 0 : window.remaining());
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+
+        private ByteBuffer nextWindow() {
+            try {
+                long windowEnd = end - position <= chunkSize ? end : lineStartAfter(channel, position + chunkSize - 1, end);
+                if (windowEnd - position > MAX_CHUNK_SIZE) throw new IOException("Line at " + position + " does not fit into a window");
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, windowEnd - position);
+                position = windowEnd;
+                return mapped;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
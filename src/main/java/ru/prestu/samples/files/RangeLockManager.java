@@ -0,0 +1,219 @@
+package ru.prestu.samples.files;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Блокировки диапазонов байт одного файла для потоков одной JVM и для других процессов.
+* Внутри JVM - таблица занятых диапазонов под монитором: конфликтующий запрос ждет в wait(), освобождение будит notifyAll()
+* Между процессами - FileChannel.lock(position, size, shared) на каждый диапазон таблицы
+* Непересекающиеся диапазоны, разделяемые или исключительные, захватываются параллельно
+* Несколько разделяемых блокировок одного и того же диапазона делят одну FileLock со счетчиком владельцев
+* Пока исключительный запрос ждет, пересекающиеся с ним разделяемые запросы не принимаются,
+  иначе непрерывный поток читателей держал бы диапазон вечно
+* Частично пересекающиеся разделяемые запросы ждут: JVM не разрешает пересекающиеся FileLock в одном процессе,
+  поэтому OverlappingFileLockException здесь не возникает
+Для разделяемых блокировок канал должен быть открыт на чтение, для исключительных - на запись.
+Прерывание потока, ждущего FileLock другого процесса, закрывает канал (ClosedByInterruptException).
+*/
+public class RangeLockManager {
+
+    private final FileChannel channel;
+    private final List<Range> held = new ArrayList<>();
+    //Ждущие исключительные запросы, еще не попавшие в held
+    private final List<Range> waitingExclusive = new ArrayList<>();
+
+    public RangeLockManager(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    //Ждет, пока диапазон не освободят потоки этой JVM и другие процессы
+    public RangeLock lock(long position, long size, boolean shared) throws IOException, InterruptedException {
+        checkRange(position, size);
+        while (true) {
+            Range range;
+            synchronized (this) {
+                range = awaitInProcess(position, size, shared);
+                if (range.holders > 1) {
+                    if (awaitShared(range)) return new RangeLock(range);
+                    continue;
+                }
+            }
+            boolean locked = false;
+            try {
+                range.lock = channel.lock(position, size, shared);
+                locked = true;
+            } finally {
+                published(range, locked);
+            }
+            return new RangeLock(range);
+        }
+    }
+
+    //null, если диапазон занят потоком этой JVM или другим процессом
+    public RangeLock tryLock(long position, long size, boolean shared) throws IOException {
+        checkRange(position, size);
+        Range range;
+        synchronized (this) {
+            range = acquireInProcess(position, size, shared);
+            if (range == null) return null;
+            if (range.holders > 1) {
+                if (range.lock != null) return new RangeLock(range);
+                //Блокировка этого диапазона еще захватывается другим потоком, ждать tryLock не должен
+                range.holders--;
+                return null;
+            }
+        }
+        boolean locked = false;
+        try {
+            range.lock = channel.tryLock(position, size, shared);
+            locked = range.lock != null;
+        } finally {
+            published(range, locked);
+        }
+        return locked ? new RangeLock(range) : null;
+    }
+
+    //Число занятых диапазонов в таблице
+    public synchronized int heldRanges() {
+        return held.size();
+    }
+
+    private Range awaitInProcess(long position, long size, boolean shared) throws InterruptedException {
+        Range range = acquireInProcess(position, size, shared);
+        if (range != null) return range;
+        Range waiting = shared ? null : new Range(position, size, false);
+        if (waiting != null) waitingExclusive.add(waiting);
+        try {
+            while ((range = acquireInProcess(position, size, shared)) == null) wait();
+            return range;
+        } finally {
+            if (waiting != null) {
+                waitingExclusive.remove(waiting);
+                //Прерванный исключительный запрос больше не задерживает разделяемые
+                if (range == null) notifyAll();
+            }
+        }
+    }
+
+    /*
+    Занимает диапазон в таблице или присоединяется к такому же разделяемому; null при конфликте.
+    Разделяемый запрос, пересекающийся с ждущим исключительным, тоже получает null.
+    Новый диапазон добавляется без FileLock: его захватывают вне монитора, чтобы ожидание другого процесса не блокировало таблицу.
+    */
+    private Range acquireInProcess(long position, long size, boolean shared) {
+        if (shared) {
+            for (Range waiting : waitingExclusive) {
+                if (waiting.overlaps(position, size)) return null;
+            }
+        }
+        Range same = null;
+        for (Range range : held) {
+            if (!range.overlaps(position, size)) continue;
+            if (shared && range.shared && range.position == position && range.size == size) {
+                same = range;
+            } else {
+                return null;
+            }
+        }
+        if (same != null) {
+            same.holders++;
+            return same;
+        }
+        Range range = new Range(position, size, shared);
+        held.add(range);
+        return range;
+    }
+
+    //Присоединившийся к разделяемому диапазону ждет, пока первый владелец захватит FileLock; false, если тому не удалось
+    private boolean awaitShared(Range range) throws InterruptedException {
+        try {
+            while (range.lock == null && !range.failed) wait();
+        } catch (InterruptedException e) {
+            range.holders--;
+            throw e;
+        }
+        //При неудаче диапазон уже убран из таблицы, запрос повторяется заново
+        return !range.failed;
+    }
+
+    private synchronized void published(Range range, boolean locked) {
+        if (!locked) {
+            range.failed = true;
+            held.remove(range);
+        }
+        notifyAll();
+    }
+
+    private synchronized void release(Range range) throws IOException {
+        if (--range.holders > 0) return;
+        held.remove(range);
+        notifyAll();
+        range.lock.release();
+    }
+
+    private static void checkRange(long position, long size) {
+        if (position < 0 || size < 0 || position + size < 0) throw new IllegalArgumentException("Range " + position + "+" + size);
+    }
+
+    private static final class Range {
+
+        final long position;
+        final long size;
+        final boolean shared;
+        int holders = 1;
+        //null, пока первый владелец ждет FileLock
+        FileLock lock;
+        boolean failed;
+
+        Range(long position, long size, boolean shared) {
+            this.position = position;
+            this.size = size;
+            this.shared = shared;
+        }
+
+        boolean overlaps(long position, long size) {
+            return position < this.position + this.size && this.position < position + size;
+        }
+    }
+
+    public final class RangeLock implements AutoCloseable {
+
+        private final Range range;
+        private boolean released;
+
+        private RangeLock(Range range) {
+            this.range = range;
+        }
+
+        public long position() {
+            return range.position;
+        }
+
+        public long size() {
+            return range.size;
+        }
+
+        public boolean isShared() {
+            return range.shared;
+        }
+
+        //Повторный вызов ничего не делает
+        public void release() throws IOException {
+            synchronized (RangeLockManager.this) {
+                if (released) return;
+                released = true;
+            }
+            RangeLockManager.this.release(range);
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+    }
+
+}
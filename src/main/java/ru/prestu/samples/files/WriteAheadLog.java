@@ -0,0 +1,379 @@
+package ru.prestu.samples.files;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import ru.prestu.samples.concurrency.MpscQueue;
+import ru.prestu.samples.concurrency.WaitStrategy;
+
+/*
+Журнал упреждающей записи с групповой фиксацией.
+* Потоки добавляют записи в очередь MpscQueue и получают future
+* Поток фиксации забирает накопившиеся записи пачкой, пишет их одним FileChannel.write(ByteBuffer[]) и делает один force()
+* Без записей поток фиксации спит в park() без таймаута, append будит его, только если он собрался заснуть
+* future завершается номером записи (LSN) только после force(), так что один force() обслуживает всю пачку;
+  пачка на несколько сегментов завершает future записей каждого сегмента сразу после его force()
+* После ошибки записи журнал больше не пишет: все следующие future завершаются ошибкой, но поток фиксации
+  продолжает разбирать очередь, чтобы append не ждал места в ней вечно
+* Журнал - каталог сегментов; сегмент называется LSN своей первой записи, при заполнении начинается новый
+* После создания сегмента сбрасывается и каталог, иначе после сбоя файл может пропасть вместе с записями
+* Кадр записи: [int длина][int CRC32 данных][данные]
+* При открытии сегменты проверяются: оборванный или испорченный хвост последнего сегмента отрезается
+* FileLock на файле блокировки в каталоге не дает открыть журнал на запись второму процессу
+*/
+public class WriteAheadLog implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int FRAME_HEADER = 8;
+    static final String SEGMENT_SUFFIX = ".wal";
+    static final String LOCK_FILE = "wal.lock";
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH = 1024;
+    //Каталог в Windows нельзя открыть как FileChannel, а метаданные NTFS журналируются самой файловой системой
+    private static final boolean FORCE_DIRECTORY = !System.getProperty("os.name").startsWith("Windows");
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final MpscQueue<Pending> queue = new MpscQueue<>(QUEUE_CAPACITY);
+    private final Thread committer;
+
+    //Изменяются только потоком фиксации (до его запуска - конструктором)
+    private FileChannel segment;
+    private long nextLsn;
+    private final ByteBuffer headers = ByteBuffer.allocateDirect(MAX_BATCH * FRAME_HEADER);
+    private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_BATCH];
+    private final CRC32 crc = new CRC32();
+
+    private volatile long durableLsn;
+    private volatile IOException failure;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    //Потоки внутри append(); close() дожидается их, прежде чем остановить поток фиксации
+    private final AtomicInteger appending = new AtomicInteger();
+    //Выставляется close(), когда новых записей в очереди уже не появится
+    private volatile boolean stopping;
+    //Поток фиксации собирается заснуть и ждет unpark()
+    private volatile boolean idle;
+
+    public WriteAheadLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public WriteAheadLog(Path directory, long segmentSize) throws IOException {
+        if (segmentSize <= FRAME_HEADER) throw new IllegalArgumentException("Segment size " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+            if (lock == null) throw new IOException("Log " + directory + " is locked by another process");
+            recover();
+        } catch (OverlappingFileLockException e) {
+            lockChannel.close();
+            throw new IOException("Log " + directory + " is already open", e);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /*
+    Номер записи приходит в future после сброса на диск.
+    Буфер нельзя менять до завершения future; при заполненной очереди вызов ждет.
+    */
+    public CompletableFuture<Long> append(ByteBuffer record) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        if (record.remaining() > segmentSize - FRAME_HEADER) {
+            future.completeExceptionally(new IllegalArgumentException("Record of " + record.remaining() + " bytes does not fit into a segment"));
+            return future;
+        }
+        //Счетчик увеличивается до проверки closed: либо append видит закрытие, либо close() ждет этот append
+        appending.incrementAndGet();
+        try {
+            if (closed.get()) {
+                future.completeExceptionally(new IOException("Log is closed"));
+                return future;
+            }
+            IOException failed = failure;
+            if (failed != null) {
+                future.completeExceptionally(failed);
+                return future;
+            }
+            queue.put(new Pending(record.duplicate(), future), WaitStrategy.YIELD);
+            if (idle) LockSupport.unpark(committer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } finally {
+            appending.decrementAndGet();
+        }
+        return future;
+    }
+
+    public CompletableFuture<Long> append(byte[] record) {
+        return append(ByteBuffer.wrap(record));
+    }
+
+    //Число записей, гарантированно сброшенных на диск; это же LSN следующей записи
+    public long durableLsn() {
+        return durableLsn;
+    }
+
+    //Сброшенные на диск записи начиная с fromLsn; буфер записи переиспользуется между вызовами consumer
+    public void replay(long fromLsn, BiConsumer<Long, ByteBuffer> consumer) throws IOException {
+        long until = durableLsn;
+        for (Path file : segmentFiles()) {
+            long base = baseLsn(file);
+            if (base >= until) break;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long[] lsn = {base};
+                scan(channel, (position, record) -> {
+                    if (lsn[0] >= fromLsn && lsn[0] < until) consumer.accept(lsn[0], record);
+                    lsn[0]++;
+                });
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return;
+        //Записи, уже принятые append, фиксируются до остановки
+        while (appending.get() != 0) Thread.yield();
+        stopping = true;
+        LockSupport.unpark(committer);
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        //Остаток возможен, только если поток фиксации завершился аварийно вне commit
+        Pending pending;
+        while ((pending = queue.poll()) != null) pending.future.completeExceptionally(new IOException("Log is closed"));
+        try {
+            segment.close();
+        } finally {
+            try {
+                lock.release();
+            } finally {
+                lockChannel.close();
+            }
+        }
+        IOException failed = failure;
+        if (failed != null) throw failed;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = segmentFiles();
+        long lastBase = -1;
+        for (int k = 0; k < files.size(); k++) {
+            Path file = files.get(k);
+            long base = baseLsn(file);
+            if (base != nextLsn) throw new IOException("Segment " + file + " starts at " + base + ", expected " + nextLsn);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long[] count = {0};
+                long validEnd = scan(channel, (position, record) -> count[0]++);
+                if (validEnd < channel.size()) {
+                    //Оборванная запись возможна только в хвосте последнего сегмента
+                    if (k < files.size() - 1) throw new IOException("Corrupted record at " + validEnd + " in " + file);
+                    channel.truncate(validEnd);
+                    channel.force(true);
+                    forceDirectory();
+                }
+                nextLsn += count[0];
+            }
+            lastBase = base;
+        }
+        if (lastBase < 0) {
+            openSegment(0);
+        } else {
+            segment = FileChannel.open(segmentFile(lastBase), StandardOpenOption.WRITE);
+            segment.position(segment.size());
+        }
+        durableLsn = nextLsn;
+    }
+
+    //Обходит корректные кадры сегмента, возвращает позицию после последнего из них
+    private long scan(FileChannel channel, BiConsumer<Long, ByteBuffer> visitor) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        ByteBuffer record = ByteBuffer.allocate(0);
+        CRC32 check = new CRC32();
+        while (position + FRAME_HEADER <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length < 0 || position + FRAME_HEADER + length > size) break;
+            if (record.capacity() < length) record = ByteBuffer.allocate(length);
+            record.clear().limit(length);
+            readFully(channel, record, position + FRAME_HEADER);
+            record.flip();
+            check.reset();
+            check.update(record.duplicate());
+            if ((int) check.getValue() != header.getInt(4)) break;
+            visitor.accept(position, record);
+            position += FRAME_HEADER + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of " + channel);
+            position += read;
+        }
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            batch.clear();
+            if (queue.drainTo(batch, MAX_BATCH) == 0) {
+                //После stopping новых записей нет, так что пустая очередь окончательна
+                if (stopping) return;
+                //idle выставляется до повторной проверки очереди: запись, добавленная после проверки, увидит idle и разбудит
+                idle = true;
+                if (queue.size() == 0 && !stopping) LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+            if (failure != null) {
+                for (Pending pending : batch) pending.future.completeExceptionally(failure);
+                continue;
+            }
+            try {
+                commit(batch);
+            } catch (IOException e) {
+                fail(batch, e);
+            } catch (RuntimeException | Error e) {
+                fail(batch, new IOException("Commit failed", e));
+            }
+        }
+    }
+
+    //future, уже завершенные после force() своего сегмента, completeExceptionally не меняет
+    private void fail(List<Pending> batch, IOException e) {
+        failure = e;
+        for (Pending pending : batch) pending.future.completeExceptionally(e);
+    }
+
+    //Пачка пишется одним или несколькими gathering write (по одному на сегмент), затем один force() на сегмент
+    private void commit(List<Pending> batch) throws IOException {
+        headers.clear();
+        int buffers = 0;
+        int durable = 0;
+        long written = segment.position();
+        for (int k = 0; k < batch.size(); k++) {
+            Pending pending = batch.get(k);
+            int length = pending.record.remaining();
+            if (written + FRAME_HEADER + length > segmentSize && written > 0) {
+                writeAndForce(buffers);
+                durable = complete(batch, durable, k);
+                buffers = 0;
+                headers.clear();
+                openSegment(nextLsn);
+                written = 0;
+            }
+            crc.reset();
+            crc.update(pending.record.duplicate());
+            ByteBuffer header = headers.slice();
+            header.limit(FRAME_HEADER);
+            header.putInt(0, length).putInt(4, (int) crc.getValue());
+            headers.position(headers.position() + FRAME_HEADER);
+            gather[buffers++] = header;
+            gather[buffers++] = pending.record;
+            written += FRAME_HEADER + length;
+            nextLsn++;
+        }
+        writeAndForce(buffers);
+        complete(batch, durable, batch.size());
+    }
+
+    //Записи [from, to) пачки сброшены на диск; nextLsn - LSN следующей за to записи
+    private int complete(List<Pending> batch, int from, int to) {
+        long lsn = nextLsn - (to - from);
+        durableLsn = nextLsn;
+        for (int k = from; k < to; k++) batch.get(k).future.complete(lsn++);
+        return to;
+    }
+
+    private void writeAndForce(int buffers) throws IOException {
+        int offset = 0;
+        while (offset < buffers) {
+            segment.write(gather, offset, buffers - offset);
+            while (offset < buffers && !gather[offset].hasRemaining()) gather[offset++] = null;
+        }
+        segment.force(false);
+    }
+
+    private void openSegment(long base) throws IOException {
+        if (segment != null) segment.close();
+        segment = FileChannel.open(segmentFile(base), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        forceDirectory();
+    }
+
+    private void forceDirectory() throws IOException {
+        if (!FORCE_DIRECTORY) return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path segmentFile(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) files.add(file);
+        }
+        //Имена одной длины, поэтому лексикографический порядок совпадает с порядком LSN
+        files.sort(null);
+        return files;
+    }
+
+    private static long baseLsn(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static final class Pending {
+
+        final ByteBuffer record;
+        final CompletableFuture<Long> future;
+
+        Pending(ByteBuffer record, CompletableFuture<Long> future) {
+            this.record = record;
+            this.future = future;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package ru.prestu.samples.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Гистограмма неотрицательных long-значений (обычно наносекунд) в духе HdrHistogram.
+* Логарифмически-линейные корзины: значения до 2^SUB_BITS хранятся точно,
+  дальше каждый диапазон [2^e, 2^(e+1)) делится на 2^SUB_BITS равных корзин, относительная погрешность ~3%
+* Весь диапазон long покрывается фиксированным массивом, запись - одно атомарное приращение без аллокаций и блокировок
+* Снимок (Snapshot) копирует счетчики, перцентили считаются по снимку
+*/
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    //Отрицательные значения записываются как 0
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //повтор, пока другой поток не записал большее значение
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int k = 0; k < BUCKETS; k++) copy[k] = counts.get(k);
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    //Записи, идущие одновременно со сбросом, могут частично остаться
+    public void reset() {
+        for (int k = 0; k < BUCKETS; k++) counts.set(k, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BITS));
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa - SUB_COUNT;
+    }
+
+    //Наибольшее значение, попадающее в корзину
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long lowest = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) total += c;
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //percentile от 0 до 100; верхняя граница корзины, не больше максимума
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int k = 0; k < counts.length; k++) {
+                seen += counts[k];
+                if (seen >= rank) return Math.min(highestValue(k), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1f p50=%d p99=%d p99.9=%d max=%d",
+                    count, mean(), percentile(50), percentile(99), percentile(99.9), max);
+        }
+    }
+
+}
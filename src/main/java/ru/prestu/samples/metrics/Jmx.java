@@ -0,0 +1,67 @@
+package ru.prestu.samples.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+Регистрация MBean в платформенном MBeanServer под доменом ru.prestu.samples.
+Имя объекта - ru.prestu.samples:type=<type>,name=<name>; уже зарегистрированный под тем же именем объект заменяется.
+unregister с объектом снимает регистрацию, только если под именем зарегистрирован именно он, -
+закрытие замененного владельца не снимает чужой MBean.
+*/
+public final class Jmx {
+
+    public static final String DOMAIN = "ru.prestu.samples";
+
+    //Текущий зарегистрированный объект по имени; под монитором класса вместе с вызовами MBeanServer
+    private static final Map<ObjectName, Object> owners = new HashMap<>();
+
+    private Jmx() {
+    }
+
+    public static synchronized ObjectName register(String type, String name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = objectName(type, name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            owners.remove(objectName);
+            server.registerMBean(mbean, objectName);
+            owners.put(objectName, mbean);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + type + " " + name, e);
+        }
+    }
+
+    public static synchronized void unregister(String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = objectName(type, name);
+            owners.remove(objectName);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister " + type + " " + name, e);
+        }
+    }
+
+    //false, если под именем уже зарегистрирован другой объект (или ничего)
+    public static synchronized boolean unregister(String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = objectName(type, name);
+            if (owners.get(objectName) != mbean) return false;
+            unregister(type, name);
+            return true;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister " + type + " " + name, e);
+        }
+    }
+
+    public static ObjectName objectName(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+}
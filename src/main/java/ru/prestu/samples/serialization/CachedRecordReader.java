@@ -0,0 +1,166 @@
+package ru.prestu.samples.serialization;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import ru.prestu.samples.metrics.Jmx;
+
+/*
+Кэш декодированных записей перед RecordFileReader (Guava LoadingCache), ключ - номер записи.
+* Размер ограничен оценкой удерживаемой памяти: вес записи считается по длинам s и myData
+* Запись удаляется, если к ней не обращались expireAfterAccess
+* Одновременные промахи по одной записи читают и декодируют ее один раз, остальные потоки ждут результата
+* Статистика попаданий, промахов и времени загрузки доступна через stats() и в JMX как RecordCacheMXBean;
+  при одинаковом имени в JMX виден последний созданный кэш
+Записи файла не меняются после записи, поэтому инвалидация не нужна.
+Возвращаемый объект общий для всех вызовов get, изменять его нельзя.
+*/
+public class CachedRecordReader implements Closeable, RecordCacheMXBean {
+
+    static final String JMX_TYPE = "RecordCache";
+
+    //Оценки для 64-битной JVM со сжатыми ссылками: запись кэша с ключом Long, DataObject, CustomObject, String с массивом
+    static final int ENTRY_OVERHEAD = 96;
+    static final int DATA_OBJECT = 32;
+    static final int CUSTOM_OBJECT = 16;
+    static final int STRING = 40;
+
+    private final String name;
+    private final long maxWeight;
+    private final RecordFileReader reader;
+    private final LoadingCache<Long, DataObject> cache;
+
+    public CachedRecordReader(Path file, String name, long maxBytes, long expireAfterAccess, TimeUnit unit) throws IOException {
+        this.name = name;
+        this.maxWeight = maxBytes;
+        reader = new RecordFileReader(file);
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long recordNo, DataObject obj) -> weight(obj))
+                .expireAfterAccess(expireAfterAccess, unit)
+                .recordStats()
+                .build(new CacheLoader<Long, DataObject>() {
+                    @Override
+                    public DataObject load(Long recordNo) throws IOException {
+                        return reader.get(recordNo);
+                    }
+                });
+        try {
+            Jmx.register(JMX_TYPE, name, this);
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    public DataObject get(long recordNo) throws IOException {
+        try {
+            return cache.get(recordNo);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (UncheckedExecutionException e) {
+            //Например, IndexOutOfBoundsException для номера вне файла
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    //Запись из кэша без чтения файла, null при отсутствии
+    public DataObject getIfPresent(long recordNo) {
+        return cache.getIfPresent(recordNo);
+    }
+
+    public long size() {
+        return reader.size();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    //Оценка удерживаемых байт записи вместе с накладными расходами кэша
+    static int weight(DataObject obj) {
+        long weight = ENTRY_OVERHEAD + DATA_OBJECT + stringWeight(obj.getS()) + stringWeight(obj.getMyData());
+        if (obj.getObj() != null) weight += CUSTOM_OBJECT;
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    //Строка с массивом char: заголовки и по 2 байта на символ (для Latin-1 строк Java 9+ это верхняя граница)
+    private static long stringWeight(String s) {
+        return s == null ? 0 : STRING + 2L * s.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        //Другой CachedRecordReader с тем же именем мог заменить этот MBean - его регистрация остается
+        Jmx.unregister(JMX_TYPE, name, this);
+        cache.invalidateAll();
+        reader.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return cache.stats().loadCount();
+    }
+
+    @Override
+    public long getLoadExceptionCount() {
+        return cache.stats().loadExceptionCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return cache.stats().totalLoadTime();
+    }
+
+    @Override
+    public double getAverageLoadPenalty() {
+        return cache.stats().averageLoadPenalty();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+}
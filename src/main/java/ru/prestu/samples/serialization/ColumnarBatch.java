@@ -0,0 +1,392 @@
+package ru.prestu.samples.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/*
+Пакет DataObject в колоночном виде для аналитических выборок.
+* i - массив int
+* obj - два битовых множества: CustomObject есть и его b == true
+* s и myData - словарь различных значений (байты UTF-8 подряд и смещения) и код словаря на строку, -1 для null
+Выборка: условия where* проходят по целой колонке в плотном цикле и возвращают Selection - битовую маску строк.
+Маски объединяются and/or/not, DataObject создаются только для отобранных строк (materialize).
+Строковое условие вычисляется один раз на значение словаря, а не на строку.
+transient поле def не хранится.
+*/
+public final class ColumnarBatch {
+
+    private static final int MAGIC = 0x434F4C31;
+
+    private final int size;
+    private final int[] i;
+    private final long[] hasObj;
+    private final long[] b;
+    private final StringColumn s;
+    private final StringColumn myData;
+
+    private ColumnarBatch(int size, int[] i, long[] hasObj, long[] b, StringColumn s, StringColumn myData) {
+        this.size = size;
+        this.i = i;
+        this.hasObj = hasObj;
+        this.b = b;
+        this.s = s;
+        this.myData = myData;
+    }
+
+    public static ColumnarBatch of(List<DataObject> rows) {
+        int size = rows.size();
+        int[] i = new int[size];
+        long[] hasObj = new long[words(size)];
+        long[] b = new long[words(size)];
+        StringColumn.Builder s = new StringColumn.Builder(size);
+        StringColumn.Builder myData = new StringColumn.Builder(size);
+        for (int row = 0; row < size; row++) {
+            DataObject obj = rows.get(row);
+            i[row] = obj.getI();
+            CustomObject custom = obj.getObj();
+            if (custom != null) {
+                hasObj[row >>> 6] |= 1L << row;
+                if (custom.isB()) b[row >>> 6] |= 1L << row;
+            }
+            s.add(obj.getS());
+            myData.add(obj.getMyData());
+        }
+        return new ColumnarBatch(size, i, hasObj, b, s.build(), myData.build());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Selection all() {
+        return new Selection(size).not();
+    }
+
+    public Selection whereI(IntPredicate predicate) {
+        Selection selection = new Selection(size);
+        long[] bits = selection.bits;
+        for (int row = 0; row < size; row++) {
+            if (predicate.test(i[row])) bits[row >>> 6] |= 1L << row;
+        }
+        return selection;
+    }
+
+    //from <= i <= to, без вызова предиката на строку
+    public Selection whereIBetween(int from, int to) {
+        Selection selection = new Selection(size);
+        long[] bits = selection.bits;
+        for (int row = 0; row < size; row++) {
+            int value = i[row];
+            long match = value >= from && value <= to ? 1L : 0L;
+            bits[row >>> 6] |= match << row;
+        }
+        return selection;
+    }
+
+    //Строки, где CustomObject есть и его b равно value
+    public Selection whereB(boolean value) {
+        Selection selection = new Selection(size);
+        for (int word = 0; word < hasObj.length; word++) {
+            selection.bits[word] = hasObj[word] & (value ? b[word] : ~b[word]);
+        }
+        return selection;
+    }
+
+    public Selection whereObjNull() {
+        Selection selection = new Selection(size);
+        for (int word = 0; word < hasObj.length; word++) selection.bits[word] = ~hasObj[word];
+        selection.clearTail();
+        return selection;
+    }
+
+    //Предикат получает и null
+    public Selection whereS(Predicate<String> predicate) {
+        return s.where(predicate, size);
+    }
+
+    public Selection whereMyData(Predicate<String> predicate) {
+        return myData.where(predicate, size);
+    }
+
+    public int getI(int row) {
+        return i[checkRow(row)];
+    }
+
+    public String getS(int row) {
+        return s.get(checkRow(row));
+    }
+
+    public String getMyData(int row) {
+        return myData.get(checkRow(row));
+    }
+
+    public DataObject row(int row) {
+        checkRow(row);
+        DataObject obj = new DataObject();
+        obj.setI(i[row]);
+        if ((hasObj[row >>> 6] & 1L << row) != 0) {
+            CustomObject custom = new CustomObject();
+            custom.setB((b[row >>> 6] & 1L << row) != 0);
+            obj.setObj(custom);
+        }
+        obj.setS(s.get(row));
+        obj.setMyData(myData.get(row));
+        return obj;
+    }
+
+    public List<DataObject> materialize(Selection selection) {
+        if (selection.size != size) throw new IllegalArgumentException("Selection of " + selection.size + " rows for a batch of " + size);
+        List<DataObject> rows = new ArrayList<>(selection.cardinality());
+        for (int row = selection.nextSelected(0); row >= 0; row = selection.nextSelected(row + 1)) rows.add(row(row));
+        return rows;
+    }
+
+    /*
+    Формат: int MAGIC, int size, колонка i, маски obj и b (long на 64 строки), колонки s и myData.
+    Строковая колонка: int число значений словаря, int смещения (на одно больше), int длина байтов, байты UTF-8, int коды строк.
+    */
+    public int encodedSize() {
+        return 2 * Integer.BYTES + size * Integer.BYTES + 2 * words(size) * Long.BYTES + s.encodedSize() + myData.encodedSize();
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(size);
+        putInts(buffer, i);
+        putLongs(buffer, hasObj);
+        putLongs(buffer, b);
+        s.writeTo(buffer);
+        myData.writeTo(buffer);
+    }
+
+    public static ColumnarBatch readFrom(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        if (magic != MAGIC) throw new IllegalArgumentException("Not a columnar batch: " + Integer.toHexString(magic));
+        int size = buffer.getInt();
+        int[] i = getInts(buffer, size);
+        long[] hasObj = getLongs(buffer, words(size));
+        long[] b = getLongs(buffer, words(size));
+        StringColumn s = StringColumn.readFrom(buffer, size);
+        StringColumn myData = StringColumn.readFrom(buffer, size);
+        return new ColumnarBatch(size, i, hasObj, b, s, myData);
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return row;
+    }
+
+    static int words(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return values;
+    }
+
+    private static void putLongs(ByteBuffer buffer, long[] values) {
+        buffer.asLongBuffer().put(values);
+        buffer.position(buffer.position() + values.length * Long.BYTES);
+    }
+
+    private static long[] getLongs(ByteBuffer buffer, int length) {
+        long[] values = new long[length];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + length * Long.BYTES);
+        return values;
+    }
+
+    //Битовая маска отобранных строк пакета
+    public static final class Selection {
+
+        private final int size;
+        private final long[] bits;
+
+        Selection(int size) {
+            this.size = size;
+            this.bits = new long[words(size)];
+        }
+
+        private Selection(int size, long[] bits) {
+            this.size = size;
+            this.bits = bits;
+        }
+
+        public Selection and(Selection other) {
+            checkSize(other);
+            long[] result = new long[bits.length];
+            for (int word = 0; word < bits.length; word++) result[word] = bits[word] & other.bits[word];
+            return new Selection(size, result);
+        }
+
+        public Selection or(Selection other) {
+            checkSize(other);
+            long[] result = new long[bits.length];
+            for (int word = 0; word < bits.length; word++) result[word] = bits[word] | other.bits[word];
+            return new Selection(size, result);
+        }
+
+        public Selection not() {
+            long[] result = new long[bits.length];
+            for (int word = 0; word < bits.length; word++) result[word] = ~bits[word];
+            Selection selection = new Selection(size, result);
+            selection.clearTail();
+            return selection;
+        }
+
+        public boolean isSelected(int row) {
+            return (bits[row >>> 6] & 1L << row) != 0;
+        }
+
+        public int cardinality() {
+            int count = 0;
+            for (long word : bits) count += Long.bitCount(word);
+            return count;
+        }
+
+        //Первая отобранная строка не раньше from, -1 если таких нет
+        public int nextSelected(int from) {
+            if (from >= size) return -1;
+            int word = from >>> 6;
+            long current = bits[word] & (-1L << from);
+            while (true) {
+                if (current != 0) return (word << 6) + Long.numberOfTrailingZeros(current);
+                if (++word == bits.length) return -1;
+                current = bits[word];
+            }
+        }
+
+        //Объединяются только выборки одного пакета
+        private void checkSize(Selection other) {
+            if (other.size != size) throw new IllegalArgumentException("Selection of " + other.size + " rows combined with " + size);
+        }
+
+        //Биты за последней строкой всегда нулевые
+        private void clearTail() {
+            int tail = size & 63;
+            if (tail != 0) bits[bits.length - 1] &= (1L << tail) - 1;
+        }
+    }
+
+    private static final class StringColumn {
+
+        private final int[] offsets;
+        private final byte[] bytes;
+        private final int[] codes;
+        //Декодированный словарь, заполняется при первом обращении; volatile публикует массив вместе с элементами,
+        //а гонка двух потоков лишь декодирует словарь дважды
+        private volatile String[] values;
+
+        StringColumn(int[] offsets, byte[] bytes, int[] codes) {
+            this.offsets = offsets;
+            this.bytes = bytes;
+            this.codes = codes;
+        }
+
+        String get(int row) {
+            int code = codes[row];
+            return code < 0 ? null : dictionary()[code];
+        }
+
+        Selection where(Predicate<String> predicate, int size) {
+            String[] dictionary = dictionary();
+            boolean[] matches = new boolean[dictionary.length];
+            for (int code = 0; code < dictionary.length; code++) matches[code] = predicate.test(dictionary[code]);
+            boolean matchesNull = predicate.test(null);
+            Selection selection = new Selection(size);
+            long[] bits = selection.bits;
+            for (int row = 0; row < size; row++) {
+                int code = codes[row];
+                if (code < 0 ? matchesNull : matches[code]) bits[row >>> 6] |= 1L << row;
+            }
+            return selection;
+        }
+
+        private String[] dictionary() {
+            String[] dictionary = values;
+            if (dictionary == null) {
+                dictionary = new String[offsets.length - 1];
+                for (int code = 0; code < dictionary.length; code++) {
+                    dictionary[code] = new String(bytes, offsets[code], offsets[code + 1] - offsets[code], StandardCharsets.UTF_8);
+                }
+                values = dictionary;
+            }
+            return dictionary;
+        }
+
+        int encodedSize() {
+            return Integer.BYTES + offsets.length * Integer.BYTES + Integer.BYTES + bytes.length + codes.length * Integer.BYTES;
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.putInt(offsets.length - 1);
+            putInts(buffer, offsets);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            putInts(buffer, codes);
+        }
+
+        static StringColumn readFrom(ByteBuffer buffer, int size) {
+            int[] offsets = getInts(buffer, buffer.getInt() + 1);
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new StringColumn(offsets, bytes, getInts(buffer, size));
+        }
+
+        static final class Builder {
+
+            private final Map<String, Integer> dictionary = new HashMap<>();
+            private final List<byte[]> encoded = new ArrayList<>();
+            private final int[] codes;
+            private int rows;
+            private int length;
+
+            Builder(int size) {
+                codes = new int[size];
+            }
+
+            void add(String value) {
+                if (value == null) {
+                    codes[rows++] = -1;
+                    return;
+                }
+                Integer code = dictionary.get(value);
+                if (code == null) {
+                    code = encoded.size();
+                    dictionary.put(value, code);
+                    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                    encoded.add(utf8);
+                    length += utf8.length;
+                }
+                codes[rows++] = code;
+            }
+
+            StringColumn build() {
+                int[] offsets = new int[encoded.size() + 1];
+                byte[] bytes = new byte[length];
+                for (int code = 0; code < encoded.size(); code++) {
+                    byte[] utf8 = encoded.get(code);
+                    System.arraycopy(utf8, 0, bytes, offsets[code], utf8.length);
+                    offsets[code + 1] = offsets[code] + utf8.length;
+                }
+                return new StringColumn(offsets, bytes, Arrays.copyOf(codes, rows));
+            }
+        }
+    }
+
+}
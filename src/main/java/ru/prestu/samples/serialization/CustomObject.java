@@ -42,6 +42,10 @@ public class CustomObject implements Externalizable {
         return Objects.equals(b, other.b);
     }
 
-
+    //Согласован с equals, иначе равные DataObject имели бы разный hashCode
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(b);
+    }
 
 }
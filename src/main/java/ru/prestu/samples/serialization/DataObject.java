@@ -50,22 +50,22 @@ public class DataObject extends NonSerializable implements Serializable {
         this.def = def;
     }
 
+    //Через геттеры и instanceof, чтобы подклассы с ленивыми полями (LazyDataObject) сравнивались с обычными объектами
     @Override
     public int hashCode() {
-        return Objects.hash(i, s, obj);
+        return Objects.hash(getI(), getS(), getObj());
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (obj == null) return false;
-        if (getClass() != obj.getClass()) return false;
+        if (!(obj instanceof DataObject)) return false;
         DataObject other = (DataObject) obj;
 
-        return Objects.equals(i, other.i) &&
-               Objects.equals(s, other.s) &&
-               //Objects.equals(def, other.def) &&
-               Objects.equals(this.obj, other.obj);
+        return getI() == other.getI() &&
+               Objects.equals(getS(), other.getS()) &&
+               //Objects.equals(getDef(), other.getDef()) &&
+               Objects.equals(getObj(), other.getObj());
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -0,0 +1,202 @@
+package ru.prestu.samples.serialization;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+Бинарный кодек DataObject без рефлексии и метаданных классов.
+Формат записи:
+* int i
+* byte obj: 0 - null, 1 - CustomObject с b = false, 2 - CustomObject с b = true
+* строка s
+* строка myData (поле родителя NonSerializable)
+Строка: int длина в байтах (-1 для null), затем байты UTF-8.
+transient поле def не пишется и после чтения равно null, как и при стандартной сериализации.
+*/
+public final class DataObjectCodec {
+
+    static final byte NULL_OBJ = 0;
+    static final byte FALSE_OBJ = 1;
+    static final byte TRUE_OBJ = 2;
+
+    private DataObjectCodec() {
+    }
+
+    public static int encodedSize(DataObject obj) {
+        return Integer.BYTES + 1 + stringSize(obj.getS()) + stringSize(obj.getMyData());
+    }
+
+    public static void encode(DataObject obj, ByteBuffer buffer) {
+        buffer.putInt(obj.getI());
+        buffer.put(objFlag(obj.getObj()));
+        putString(buffer, obj.getS());
+        putString(buffer, obj.getMyData());
+    }
+
+    public static DataObject decode(ByteBuffer buffer) {
+        DataObject obj = new DataObject();
+        obj.setI(buffer.getInt());
+        obj.setObj(toObj(buffer.get()));
+        obj.setS(getString(buffer));
+        obj.setMyData(getString(buffer));
+        return obj;
+    }
+
+    /*
+    Чтение в существующий объект: CustomObject переиспользуется,
+    а строка, совпадающая с текущим значением поля, не создается заново.
+    Поле def сбрасывается в null, как после стандартной десериализации.
+    */
+    public static void decodeInto(ByteBuffer buffer, DataObject target) {
+        target.setI(buffer.getInt());
+        byte flag = buffer.get();
+        if (flag == NULL_OBJ) {
+            target.setObj(null);
+        } else {
+            CustomObject obj = target.getObj();
+            if (obj == null) {
+                obj = new CustomObject();
+                target.setObj(obj);
+            }
+            obj.setB(flag == TRUE_OBJ);
+        }
+        target.setS(getString(buffer, target.getS()));
+        target.setMyData(getString(buffer, target.getMyData()));
+        target.setDef(null);
+    }
+
+    static byte objFlag(CustomObject obj) {
+        if (obj == null) return NULL_OBJ;
+        return obj.isB() ? TRUE_OBJ : FALSE_OBJ;
+    }
+
+    static CustomObject toObj(byte flag) {
+        if (flag == NULL_OBJ) return null;
+        CustomObject obj = new CustomObject();
+        obj.setB(flag == TRUE_OBJ);
+        return obj;
+    }
+
+    static int stringSize(String s) {
+        return Integer.BYTES + (s == null ? 0 : utf8Length(s));
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(utf8Length(s));
+        putUtf8(buffer, s);
+    }
+
+    //Длина больше остатка буфера (испорченные данные) - BufferUnderflowException и для heap-, и для direct-буфера
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        if (length > buffer.remaining()) throw new BufferUnderflowException();
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    static String getString(ByteBuffer buffer, String current) {
+        int length = buffer.getInt(buffer.position());
+        if (current != null && length >= 0 && length <= buffer.remaining() - Integer.BYTES && utf8Equals(buffer, buffer.position() + Integer.BYTES, length, current)) {
+            buffer.position(buffer.position() + Integer.BYTES + length);
+            return current;
+        }
+        return getString(buffer);
+    }
+
+    //Сравнение байтов UTF-8 в буфере со строкой без декодирования и аллокаций
+    static boolean utf8Equals(ByteBuffer buffer, int offset, int length, String s) {
+        int chars = s.length();
+        //Символ занимает от 1 до 3 байт, суррогатная пара - 4 байта
+        if (length < chars || length > 3 * chars) return false;
+        int end = offset + length;
+        int position = offset;
+        for (int k = 0; k < chars; k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) {
+                if (position >= end || buffer.get(position++) != (byte) c) return false;
+            } else if (c < 0x800) {
+                if (position + 2 > end
+                        || buffer.get(position++) != (byte) (0xC0 | (c >> 6))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            } else if (Character.isHighSurrogate(c) && k + 1 < chars && Character.isLowSurrogate(s.charAt(k + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++k));
+                if (position + 4 > end
+                        || buffer.get(position++) != (byte) (0xF0 | (codePoint >> 18))
+                        || buffer.get(position++) != (byte) (0x80 | ((codePoint >> 12) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | ((codePoint >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (codePoint & 0x3F))) return false;
+            } else if (Character.isSurrogate(c)) {
+                //Непарный суррогат не переживает кодирование, такая строка не может совпасть
+                return false;
+            } else {
+                if (position + 3 > end
+                        || buffer.get(position++) != (byte) (0xE0 | (c >> 12))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            }
+        }
+        return position == end;
+    }
+
+    //Длина строки в UTF-8 без промежуточного массива; непарный суррогат кодируется как '?', как в String.getBytes
+    static int utf8Length(String s) {
+        int length = s.length();
+        int bytes = length;
+        for (int k = 0; k < length; k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && k + 1 < length && Character.isLowSurrogate(s.charAt(k + 1))) {
+                bytes += 2;
+                k++;
+            } else if (Character.isSurrogate(c)) {
+                //'?' занимает один байт
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    //Запись символов сразу в буфер, без String.getBytes
+    static void putUtf8(ByteBuffer buffer, String s) {
+        int length = s.length();
+        for (int k = 0; k < length; k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && k + 1 < length && Character.isLowSurrogate(s.charAt(k + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++k));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+}
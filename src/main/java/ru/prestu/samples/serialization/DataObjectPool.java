@@ -0,0 +1,33 @@
+package ru.prestu.samples.serialization;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+Пул DataObject для чтения через decodeInto, когда записи передаются другим потокам.
+Поток-читатель берет объект через acquire(), поток-обработчик возвращает его через release().
+Очередь на массиве не выделяет память на каждую операцию; при переполнении объект просто отдается сборщику мусора.
+Поля возвращенного объекта не очищаются: decodeInto перезаписывает их и переиспользует совпадающие строки.
+*/
+public class DataObjectPool {
+
+    private final BlockingQueue<DataObject> free;
+
+    public DataObjectPool(int capacity) {
+        free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public DataObject acquire() {
+        DataObject obj = free.poll();
+        return obj != null ? obj : new DataObject();
+    }
+
+    public void release(DataObject obj) {
+        free.offer(obj);
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+}
@@ -0,0 +1,92 @@
+package ru.prestu.samples.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Чтение пакетов DictionaryBatchWriter.
+Каждая строка словаря декодируется один раз, записи пакета с равными значениями получают один и тот же экземпляр String.
+Между пакетами строки тоже канонические: читатель помнит до internCapacity различных строк,
+и равная строка следующего пакета заменяется уже выданным экземпляром. После заполнения таблица не растет,
+новые строки остаются каноническими только внутри своего пакета.
+*/
+public class DictionaryBatchReader implements Closeable {
+
+    public static final int DEFAULT_INTERN_CAPACITY = 1 << 16;
+
+    private final DataInputStream in;
+    private final int internCapacity;
+    private final Map<String, String> interned = new HashMap<>();
+
+    public DictionaryBatchReader(InputStream in) {
+        this(in, DEFAULT_INTERN_CAPACITY);
+    }
+
+    //internCapacity = 0 - строки канонические только внутри пакета
+    public DictionaryBatchReader(InputStream in, int internCapacity) {
+        if (internCapacity < 0) throw new IllegalArgumentException("Intern capacity " + internCapacity);
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.internCapacity = internCapacity;
+    }
+
+    //null, если пакетов больше нет
+    public List<DataObject> read() throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int count = continueVarint(first);
+        String[] dictionary = new String[Varint.readUnsigned(in)];
+        byte[] bytes = new byte[0];
+        for (int k = 0; k < dictionary.length; k++) {
+            int length = Varint.readUnsigned(in);
+            if (length > bytes.length) bytes = new byte[length];
+            in.readFully(bytes, 0, length);
+            dictionary[k] = intern(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        List<DataObject> batch = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            DataObject obj = new DataObject();
+            obj.setI(Varint.readSigned(in));
+            obj.setObj(DataObjectCodec.toObj(in.readByte()));
+            obj.setS(lookup(dictionary, Varint.readUnsigned(in)));
+            obj.setMyData(lookup(dictionary, Varint.readUnsigned(in)));
+            batch.add(obj);
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String intern(String s) {
+        String known = interned.get(s);
+        if (known != null) return known;
+        if (interned.size() < internCapacity) interned.put(s, s);
+        return s;
+    }
+
+    //Первый байт уже прочитан для проверки конца потока
+    private int continueVarint(int first) throws IOException {
+        if ((first & 0x80) == 0) return first;
+        int rest = Varint.readUnsigned(in);
+        if (rest >>> 25 != 0) throw new StreamCorruptedException("Malformed batch size");
+        return (first & 0x7F) | (rest << 7);
+    }
+
+    private static String lookup(String[] dictionary, int reference) throws StreamCorruptedException {
+        if (reference == 0) return null;
+        if (reference > dictionary.length) throw new StreamCorruptedException("Unknown dictionary id " + (reference - 1));
+        return dictionary[reference - 1];
+    }
+
+}
@@ -0,0 +1,81 @@
+package ru.prestu.samples.serialization;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Пакетная запись DataObject со словарем строк.
+ObjectOutputStream не повторяет только одну и ту же ссылку, а равные строки разных экземпляров пишет целиком.
+Здесь все значения s и myData пакета собираются в словарь, каждая различная строка пишется один раз.
+Формат пакета:
+* varint число записей
+* varint размер словаря, затем строки: varint длина + байты UTF-8
+* записи: zigzag varint i, byte obj (как в DataObjectCodec), varint ссылки на s и myData (0 - null, n - строка n-1 словаря)
+*/
+public class DictionaryBatchWriter implements Closeable, Flushable {
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> dictionary = new ArrayList<>();
+
+    public DictionaryBatchWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public void write(List<DataObject> batch) throws IOException {
+        try {
+            for (DataObject obj : batch) {
+                register(obj.getS());
+                register(obj.getMyData());
+            }
+            Varint.writeUnsigned(out, batch.size());
+            Varint.writeUnsigned(out, dictionary.size());
+            for (String s : dictionary) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                Varint.writeUnsigned(out, bytes.length);
+                out.write(bytes);
+            }
+            for (DataObject obj : batch) {
+                Varint.writeSigned(out, obj.getI());
+                out.writeByte(DataObjectCodec.objFlag(obj.getObj()));
+                Varint.writeUnsigned(out, reference(obj.getS()));
+                Varint.writeUnsigned(out, reference(obj.getMyData()));
+            }
+        } finally {
+            //Словарь действует только внутри пакета, в том числе неудачного
+            ids.clear();
+            dictionary.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void register(String s) {
+        if (s != null && !ids.containsKey(s)) {
+            ids.put(s, dictionary.size());
+            dictionary.add(s);
+        }
+    }
+
+    private int reference(String s) {
+        return s == null ? 0 : ids.get(s) + 1;
+    }
+
+}
@@ -0,0 +1,156 @@
+package ru.prestu.samples.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+DataObject поверх записи в формате DataObjectCodec без предварительного декодирования.
+* i и признак CustomObject читаются прямо из буфера при каждом вызове
+* Строки s и myData декодируются при первом обращении и запоминаются, CustomObject создается при первом getObj()
+* hasObj()/isB() отвечают на вопрос о CustomObject без создания объекта; после getObj() - по созданному объекту,
+  т.к. CustomObject изменяем
+* Любой сеттер сначала переносит все поля в обычный DataObject и отпускает буфер
+equals/hashCode унаследованы от DataObject и работают через геттеры, поэтому ленивый объект равен полностью прочитанному.
+При сериализации заменяется обычным DataObject.
+Буфер нельзя менять, пока объект его использует.
+*/
+public class LazyDataObject extends DataObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int I_OFFSET = 0;
+    private static final int OBJ_OFFSET = Integer.BYTES;
+    private static final int S_OFFSET = OBJ_OFFSET + 1;
+
+    //null после материализации
+    private transient ByteBuffer buffer;
+    private transient boolean sDecoded;
+    private transient boolean myDataDecoded;
+    private transient boolean objDecoded;
+
+    //Запись начинается с позиции buffer, позиция буфера не меняется
+    public LazyDataObject(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    //Запись с текущей позиции; позиция сдвигается за конец записи, как после DataObjectCodec.decode
+    public static LazyDataObject decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        int myDataOffset = myDataOffset(buffer, start);
+        int end = myDataOffset + Integer.BYTES + Math.max(0, buffer.getInt(myDataOffset));
+        ByteBuffer record = buffer.duplicate();
+        record.limit(end);
+        buffer.position(end);
+        return new LazyDataObject(record);
+    }
+
+    @Override
+    public int getI() {
+        return buffer == null ? super.getI() : buffer.getInt(I_OFFSET);
+    }
+
+    public boolean hasObj() {
+        if (buffer == null || objDecoded) return super.getObj() != null;
+        return buffer.get(OBJ_OFFSET) != DataObjectCodec.NULL_OBJ;
+    }
+
+    //false и при отсутствии CustomObject
+    public boolean isB() {
+        if (buffer == null || objDecoded) return super.getObj() != null && super.getObj().isB();
+        return buffer.get(OBJ_OFFSET) == DataObjectCodec.TRUE_OBJ;
+    }
+
+    @Override
+    public CustomObject getObj() {
+        if (buffer != null && !objDecoded) {
+            super.setObj(DataObjectCodec.toObj(buffer.get(OBJ_OFFSET)));
+            objDecoded = true;
+        }
+        return super.getObj();
+    }
+
+    @Override
+    public String getS() {
+        if (buffer != null && !sDecoded) {
+            super.setS(stringAt(buffer, S_OFFSET));
+            sDecoded = true;
+        }
+        return super.getS();
+    }
+
+    @Override
+    public String getMyData() {
+        if (buffer != null && !myDataDecoded) {
+            super.setMyData(stringAt(buffer, myDataOffset(buffer, 0)));
+            myDataDecoded = true;
+        }
+        return super.getMyData();
+    }
+
+    @Override
+    public void setI(int i) {
+        materialize();
+        super.setI(i);
+    }
+
+    @Override
+    public void setObj(CustomObject obj) {
+        materialize();
+        super.setObj(obj);
+    }
+
+    @Override
+    public void setS(String s) {
+        materialize();
+        super.setS(s);
+    }
+
+    @Override
+    public void setMyData(String myData) {
+        materialize();
+        super.setMyData(myData);
+    }
+
+    //Обычный DataObject с теми же значениями
+    public DataObject toDataObject() {
+        DataObject obj = new DataObject();
+        obj.setI(getI());
+        obj.setObj(getObj());
+        obj.setS(getS());
+        obj.setMyData(getMyData());
+        obj.setDef(getDef());
+        return obj;
+    }
+
+    private Object writeReplace() {
+        return toDataObject();
+    }
+
+    private void materialize() {
+        if (buffer == null) return;
+        int i = buffer.getInt(I_OFFSET);
+        getObj();
+        getS();
+        getMyData();
+        buffer = null;
+        super.setI(i);
+    }
+
+    private static int myDataOffset(ByteBuffer buffer, int start) {
+        return start + S_OFFSET + Integer.BYTES + Math.max(0, buffer.getInt(start + S_OFFSET));
+    }
+
+    private static String stringAt(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        if (length < 0) return null;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset + Integer.BYTES, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + Integer.BYTES);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
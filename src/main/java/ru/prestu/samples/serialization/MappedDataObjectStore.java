@@ -0,0 +1,167 @@
+package ru.prestu.samples.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import static ru.prestu.samples.serialization.MappedDataObjectWriter.*;
+
+/*
+Хранилище DataObject в отображенных в память файлах (см. MappedDataObjectWriter).
+* Данные лежат вне кучи, чтение полей через Flyweight ничего не выделяет
+* Полный DataObject создается только по запросу: materialize() или get(n)
+* Файлы отображаются сегментами не больше 2 Гб, отображение освобождается сборщиком мусора после close()
+*/
+public class MappedDataObjectStore implements Closeable {
+
+    private final FileChannel records;
+    private final FileChannel strings;
+    private final int segmentSize;
+    private final MappedByteBuffer[] recordSegments;
+    private final MappedByteBuffer[] stringSegments;
+    private final long count;
+
+    public MappedDataObjectStore(Path file) throws IOException {
+        records = FileChannel.open(file, StandardOpenOption.READ);
+        strings = FileChannel.open(stringFile(file), StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+        RecordFileReader.readFully(records, header, 0);
+        if (header.getInt(0) != MAGIC) throw new StreamCorruptedException("Not a mapped DataObject store: " + file);
+        segmentSize = header.getInt(4);
+        count = records.size() / RECORD_SIZE - 1;
+        recordSegments = map(records, segmentSize);
+        stringSegments = map(strings, segmentSize);
+    }
+
+    public static Path stringFile(Path file) {
+        return Paths.get(file.toString() + ".str");
+    }
+
+    public long size() {
+        return count;
+    }
+
+    //Flyweight не потокобезопасен, каждому потоку нужен свой
+    public Flyweight flyweight() {
+        return new Flyweight();
+    }
+
+    public DataObject get(long recordNo) {
+        return flyweight().moveTo(recordNo).materialize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            records.close();
+        } finally {
+            strings.close();
+        }
+    }
+
+    public class Flyweight {
+
+        private MappedByteBuffer segment;
+        private int base;
+
+        private Flyweight() {
+        }
+
+        public Flyweight moveTo(long recordNo) {
+            if (recordNo < 0 || recordNo >= count) throw new IndexOutOfBoundsException("Record " + recordNo + " of " + count);
+            long position = (recordNo + 1) * RECORD_SIZE;
+            segment = recordSegments[(int) (position / segmentSize)];
+            base = (int) (position % segmentSize);
+            return this;
+        }
+
+        public int getI() {
+            return segment.getInt(base + I_OFFSET);
+        }
+
+        public boolean hasObj() {
+            return segment.get(base + OBJ_OFFSET) != DataObjectCodec.NULL_OBJ;
+        }
+
+        //false и для записи без CustomObject
+        public boolean isB() {
+            return segment.get(base + OBJ_OFFSET) == DataObjectCodec.TRUE_OBJ;
+        }
+
+        //Длина s в байтах UTF-8, -1 для null
+        public int sLength() {
+            return segment.getInt(base + S_LENGTH);
+        }
+
+        public int myDataLength() {
+            return segment.getInt(base + MY_DATA_LENGTH);
+        }
+
+        //Сравнение s с готовыми байтами UTF-8 без создания строки
+        public boolean sEquals(byte[] utf8) {
+            return bytesEqual(segment.getLong(base + S_OFFSET), sLength(), utf8);
+        }
+
+        public boolean myDataEquals(byte[] utf8) {
+            return bytesEqual(segment.getLong(base + MY_DATA_OFFSET), myDataLength(), utf8);
+        }
+
+        public String getS() {
+            return string(segment.getLong(base + S_OFFSET), sLength());
+        }
+
+        public String getMyData() {
+            return string(segment.getLong(base + MY_DATA_OFFSET), myDataLength());
+        }
+
+        public DataObject materialize() {
+            DataObject obj = new DataObject();
+            obj.setI(getI());
+            obj.setObj(DataObjectCodec.toObj(segment.get(base + OBJ_OFFSET)));
+            obj.setS(getS());
+            obj.setMyData(getMyData());
+            return obj;
+        }
+
+        private boolean bytesEqual(long offset, int length, byte[] utf8) {
+            if (utf8 == null) return length < 0;
+            if (length != utf8.length) return false;
+            if (length == 0) return true;
+            MappedByteBuffer stringSegment = stringSegments[(int) (offset / segmentSize)];
+            int start = (int) (offset % segmentSize);
+            for (int k = 0; k < length; k++) {
+                if (stringSegment.get(start + k) != utf8[k]) return false;
+            }
+            return true;
+        }
+
+        private String string(long offset, int length) {
+            if (length < 0) return null;
+            if (length == 0) return "";
+            MappedByteBuffer stringSegment = stringSegments[(int) (offset / segmentSize)];
+            int start = (int) (offset % segmentSize);
+            byte[] bytes = new byte[length];
+            for (int k = 0; k < length; k++) {
+                bytes[k] = stringSegment.get(start + k);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, int segmentSize) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+        for (int k = 0; k < segments.length; k++) {
+            long position = (long) k * segmentSize;
+            segments[k] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+        }
+        return segments;
+    }
+
+}
@@ -0,0 +1,124 @@
+package ru.prestu.samples.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Запись хранилища для MappedDataObjectStore.
+* Файл записей: заголовок и записи фиксированной длины RECORD_SIZE
+* Файл строк <файл>.str: байты UTF-8 строк s и myData подряд
+Запись: [int i][byte obj][3 байта выравнивания][long смещение s][int длина s][int длина myData][long смещение myData]
+Длина -1 означает null. Строка никогда не пересекает границу сегмента, при необходимости перед ней вставляется пропуск.
+*/
+public class MappedDataObjectWriter implements Closeable {
+
+    static final int RECORD_SIZE = 32;
+    static final int MAGIC = 0x44_4F_42_31;
+    static final int I_OFFSET = 0;
+    static final int OBJ_OFFSET = 4;
+    static final int S_OFFSET = 8;
+    static final int S_LENGTH = 16;
+    static final int MY_DATA_LENGTH = 20;
+    static final int MY_DATA_OFFSET = 24;
+    //Сегмент отображается одним MappedByteBuffer, поэтому не больше 2 Гб
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int segmentSize;
+    private final FileChannel records;
+    private final FileChannel strings;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer stringBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long stringPosition;
+    private long count;
+
+    public MappedDataObjectWriter(Path file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    //segmentSize должен быть кратен RECORD_SIZE, тогда запись никогда не пересекает границу сегмента
+    public MappedDataObjectWriter(Path file, int segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize % RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("Segment size must be a positive multiple of " + RECORD_SIZE);
+        }
+        this.segmentSize = segmentSize;
+        records = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        strings = FileChannel.open(MappedDataObjectStore.stringFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        recordBuffer.putInt(MAGIC).putInt(segmentSize);
+        recordBuffer.position(RECORD_SIZE);
+    }
+
+    public long append(DataObject obj) throws IOException {
+        if (!recordBuffer.hasRemaining()) flushRecords();
+        int start = recordBuffer.position();
+        recordBuffer.putInt(start + I_OFFSET, obj.getI());
+        recordBuffer.put(start + OBJ_OFFSET, DataObjectCodec.objFlag(obj.getObj()));
+        putString(start + S_OFFSET, start + S_LENGTH, obj.getS());
+        putString(start + MY_DATA_OFFSET, start + MY_DATA_LENGTH, obj.getMyData());
+        recordBuffer.position(start + RECORD_SIZE);
+        return count++;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushRecords();
+            flushStrings();
+        } finally {
+            records.close();
+            strings.close();
+        }
+    }
+
+    private void putString(int offsetField, int lengthField, String s) throws IOException {
+        if (s == null) {
+            recordBuffer.putLong(offsetField, 0);
+            recordBuffer.putInt(lengthField, -1);
+            return;
+        }
+        int length = DataObjectCodec.utf8Length(s);
+        if (length > segmentSize) throw new IllegalArgumentException("String of " + length + " bytes does not fit into a segment");
+        long inSegment = stringPosition % segmentSize;
+        if (inSegment + length > segmentSize) skip(segmentSize - inSegment);
+        recordBuffer.putLong(offsetField, stringPosition);
+        recordBuffer.putInt(lengthField, length);
+        if (length > stringBuffer.remaining()) flushStrings();
+        if (length > stringBuffer.capacity()) {
+            ByteBuffer large = ByteBuffer.allocate(length);
+            DataObjectCodec.putUtf8(large, s);
+            large.flip();
+            RecordFileWriter.writeFully(strings, large);
+        } else {
+            DataObjectCodec.putUtf8(stringBuffer, s);
+        }
+        stringPosition += length;
+    }
+
+    private void skip(long bytes) throws IOException {
+        flushStrings();
+        strings.position(strings.position() + bytes);
+        stringPosition += bytes;
+    }
+
+    private void flushRecords() throws IOException {
+        recordBuffer.flip();
+        RecordFileWriter.writeFully(records, recordBuffer);
+        recordBuffer.clear();
+    }
+
+    private void flushStrings() throws IOException {
+        stringBuffer.flip();
+        RecordFileWriter.writeFully(strings, stringBuffer);
+        stringBuffer.clear();
+    }
+
+}
@@ -0,0 +1,44 @@
+package ru.prestu.samples.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/*
+Обертка над любым кодеком в ByteBuffer с теми же метриками, что у MeteredObjectOutputStream.
+Размер объекта - сдвиг позиции буфера; описаний классов у таких кодеков нет, все байты считаются данными полей.
+*/
+public class MeteredCodec<T> {
+
+    private final BiConsumer<T, ByteBuffer> encoder;
+    private final Function<ByteBuffer, T> decoder;
+    private final SerializationMetrics metrics;
+
+    public MeteredCodec(BiConsumer<T, ByteBuffer> encoder, Function<ByteBuffer, T> decoder, SerializationMetrics metrics) {
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.metrics = metrics;
+    }
+
+    public static MeteredCodec<DataObject> forDataObject(SerializationMetrics metrics) {
+        return new MeteredCodec<>(DataObjectCodec::encode, DataObjectCodec::decode, metrics);
+    }
+
+    public void encode(T obj, ByteBuffer buffer) {
+        int before = buffer.position();
+        long start = System.nanoTime();
+        encoder.accept(obj, buffer);
+        long nanos = System.nanoTime() - start;
+        metrics.recordEncode(obj == null ? null : obj.getClass(), buffer.position() - before, 0, nanos);
+    }
+
+    public T decode(ByteBuffer buffer) {
+        int before = buffer.position();
+        long start = System.nanoTime();
+        T obj = decoder.apply(buffer);
+        long nanos = System.nanoTime() - start;
+        metrics.recordDecode(obj == null ? null : obj.getClass(), buffer.position() - before, nanos);
+        return obj;
+    }
+
+}
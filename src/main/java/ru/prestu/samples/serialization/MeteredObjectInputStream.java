@@ -0,0 +1,67 @@
+package ru.prestu.samples.serialization;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/*
+ObjectInputStream с метриками для каждого верхнеуровневого объекта, прочитанного через readMeasured.
+ObjectInputStream читает нижележащий поток с упреждением, поэтому байты одного объекта приблизительны,
+а сумма по всем объектам потока точна.
+*/
+public class MeteredObjectInputStream extends ObjectInputStream {
+
+    private final CountingInputStream counter;
+    private final SerializationMetrics metrics;
+
+    public MeteredObjectInputStream(InputStream in, SerializationMetrics metrics) throws IOException {
+        this(new CountingInputStream(in), metrics);
+    }
+
+    private MeteredObjectInputStream(CountingInputStream counter, SerializationMetrics metrics) throws IOException {
+        super(counter);
+        this.counter = counter;
+        this.metrics = metrics;
+    }
+
+    public Object readMeasured() throws IOException, ClassNotFoundException {
+        long before = counter.count;
+        long start = System.nanoTime();
+        Object obj = readObject();
+        long nanos = System.nanoTime() - start;
+        metrics.recordDecode(obj == null ? null : obj.getClass(), counter.count - before, nanos);
+        return obj;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package ru.prestu.samples.serialization;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/*
+ObjectOutputStream с метриками для каждого верхнеуровневого объекта, записанного через writeMeasured.
+* Байты считаются на нижележащем потоке; drain() до и после записи выталкивает внутренний буфер, поэтому размер точный
+* writeClassDescriptor замеряет описания классов, впервые встреченных в потоке, - они относятся к текущему объекту
+* Вложенные объекты (например, myData из DataObject.writeObject) входят в размер своего верхнеуровневого объекта
+writeObject(Object) финальный в ObjectOutputStream, поэтому объекты, записанные им напрямую, не замеряются.
+*/
+public class MeteredObjectOutputStream extends ObjectOutputStream {
+
+    //TC_CLASSDESC перед описанием и TC_ENDBLOCKDATA после аннотаций класса
+    private static final int DESCRIPTOR_FRAMING = 2;
+
+    private final CountingOutputStream counter;
+    private final SerializationMetrics metrics;
+    private long descriptorBytes;
+
+    public MeteredObjectOutputStream(OutputStream out, SerializationMetrics metrics) throws IOException {
+        this(new CountingOutputStream(out), metrics);
+    }
+
+    private MeteredObjectOutputStream(CountingOutputStream counter, SerializationMetrics metrics) throws IOException {
+        super(counter);
+        this.counter = counter;
+        this.metrics = metrics;
+    }
+
+    public void writeMeasured(Object obj) throws IOException {
+        drain();
+        long before = counter.count;
+        descriptorBytes = 0;
+        long start = System.nanoTime();
+        writeObject(obj);
+        drain();
+        long nanos = System.nanoTime() - start;
+        metrics.recordEncode(obj == null ? null : obj.getClass(), counter.count - before, descriptorBytes, nanos);
+    }
+
+    //Всего байт в нижележащем потоке, включая заголовок потока
+    public long bytesWritten() throws IOException {
+        drain();
+        return counter.count;
+    }
+
+    @Override
+    protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+        drain();
+        long before = counter.count;
+        super.writeClassDescriptor(desc);
+        drain();
+        descriptorBytes += counter.count - before + DESCRIPTOR_FRAMING;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package ru.prestu.samples.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import ru.prestu.samples.files.DirectBufferPool;
+
+/*
+Параллельная запись пакетов DataObject в файл записей RecordFileWriter.
+* Размеры кадров считаются заранее, и пакет делится на раунды не больше емкости пула буферов в байтах,
+  так что большой пакет не занимает direct-памяти больше пула (плюс по неполному буферу на отрезок)
+* Раунд делится на отрезки, каждый отрезок кодируется задачей ForkJoinPool в direct-буферы из пула
+* Кадры [int длина][DataObjectCodec] те же, что у RecordFileWriter.append, поэтому файл читает RecordFileReader
+* Буферы всех отрезков раунда по порядку пишутся одним FileChannel.write(ByteBuffer[]), порядок записей сохраняется
+* Пока раунд пишется, следующий не кодируется: write() возвращается после записи последнего раунда в канал
+Кадр больше буфера пула кодируется в отдельный буфер в куче.
+При ошибке буферы возвращаются в пул, а раунды, записанные до нее, остаются в файле.
+После ошибки одного отрезка остальные бросают кодирование на следующей записи, и write() ждет выхода каждого
+из compute: отмена invokeAll помечает выполняющийся отрезок завершенным, поэтому ждать статуса задачи нельзя.
+*/
+public class ParallelBatchWriter implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    //Отрезков на поток пула, чтобы выровнять нагрузку при разных размерах записей
+    private static final int SLICES_PER_THREAD = 4;
+    private static final int MIN_SLICE = 256;
+
+    private final RecordFileWriter writer;
+    private final ForkJoinPool pool;
+    private final DirectBufferPool buffers;
+
+    public ParallelBatchWriter(Path file) throws IOException {
+        this(file, ForkJoinPool.commonPool(), new DirectBufferPool(DEFAULT_BUFFER_SIZE, 4 * ForkJoinPool.commonPool().getParallelism()));
+    }
+
+    public ParallelBatchWriter(Path file, ForkJoinPool pool, DirectBufferPool buffers) throws IOException {
+        this.writer = new RecordFileWriter(file);
+        this.pool = pool;
+        this.buffers = buffers;
+    }
+
+    //Возвращает номер первой записи пакета для RecordFileReader.get
+    public long write(List<DataObject> batch) throws IOException {
+        long first = writer.size();
+        int[] frames = new int[batch.size()];
+        for (int k = 0; k < frames.length; k++) frames[k] = RecordFileWriter.FRAME_HEADER + DataObjectCodec.encodedSize(batch.get(k));
+        long roundBytes = (long) buffers.capacity() * buffers.bufferSize();
+        int from = 0;
+        while (from < frames.length) {
+            //В раунде хотя бы одна запись, даже если она одна больше емкости пула
+            int to = from;
+            long bytes = 0;
+            do {
+                bytes += frames[to++];
+            } while (to < frames.length && bytes + frames[to] <= roundBytes);
+            writeRound(batch, frames, from, to);
+            from = to;
+        }
+        return first;
+    }
+
+    private void writeRound(List<DataObject> batch, int[] frames, int from, int to) throws IOException {
+        int sliceSize = Math.max(MIN_SLICE, (to - from) / (pool.getParallelism() * SLICES_PER_THREAD) + 1);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Slice> slices = new ArrayList<>();
+        for (int start = from; start < to; start += sliceSize) {
+            slices.add(new Slice(batch, frames, start, Math.min(to, start + sliceSize), failed));
+        }
+        try {
+            boolean completed = false;
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(slices);
+                    }
+                });
+                completed = true;
+            } finally {
+                if (!completed) failed.set(true);
+                for (Slice slice : slices) slice.awaitExit();
+            }
+            List<ByteBuffer> encoded = new ArrayList<>();
+            for (Slice slice : slices) encoded.addAll(slice.buffers);
+            writer.appendFrames(encoded.toArray(new ByteBuffer[0]), Arrays.copyOfRange(frames, from, to));
+        } finally {
+            //Все отрезки уже вышли из compute; буферы неудачных отрезков те уже вернули сами
+            for (Slice slice : slices) slice.buffers.forEach(buffers::release);
+        }
+    }
+
+    public long size() {
+        return writer.size();
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /*
+    Кодирует записи [from, to) в буферы, готовые к записи; при ошибке, своей или чужой, сам возвращает свои буферы в пул.
+    buffers читается другим потоком только после awaitExit.
+    */
+    private final class Slice extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<DataObject> batch;
+        private final int[] frames;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean failed;
+        //Кто первым установил: compute - отрезок выполняется, awaitExit - отрезок уже не начнет кодировать
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch exited = new CountDownLatch(1);
+        final List<ByteBuffer> buffers = new ArrayList<>();
+
+        Slice(List<DataObject> batch, int[] frames, int from, int to, AtomicBoolean failed) {
+            this.batch = batch;
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (!started.compareAndSet(false, true)) return;
+            DirectBufferPool bufferPool = ParallelBatchWriter.this.buffers;
+            boolean encoded = false;
+            try {
+                ByteBuffer buffer = null;
+                for (int k = from; k < to; k++) {
+                    if (failed.get()) return;
+                    int frame = frames[k];
+                    if (buffer == null || buffer.remaining() < frame) {
+                        if (buffer != null) buffer.flip();
+                        buffer = frame > bufferPool.bufferSize() ? ByteBuffer.allocate(frame) : bufferPool.acquire();
+                        buffers.add(buffer);
+                    }
+                    buffer.putInt(frame - RecordFileWriter.FRAME_HEADER);
+                    DataObjectCodec.encode(batch.get(k), buffer);
+                }
+                buffer.flip();
+                encoded = true;
+            } finally {
+                if (!encoded) {
+                    failed.set(true);
+                    buffers.forEach(bufferPool::release);
+                    buffers.clear();
+                }
+                exited.countDown();
+            }
+        }
+
+        //Возвращается, когда compute этого отрезка завершился или уже не начнется
+        void awaitExit() {
+            if (started.compareAndSet(false, true)) return;
+            boolean interrupted = false;
+            while (exited.getCount() != 0) {
+                try {
+                    exited.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package ru.prestu.samples.serialization;
+
+//Статистика кэша записей в JMX: ru.prestu.samples:type=RecordCache,name=<имя>, время в наносекундах
+public interface RecordCacheMXBean {
+
+    String getName();
+
+    long getSize();
+
+    long getMaxWeight();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getLoadCount();
+
+    long getLoadExceptionCount();
+
+    long getTotalLoadTime();
+
+    double getAverageLoadPenalty();
+
+    long getEvictionCount();
+
+}
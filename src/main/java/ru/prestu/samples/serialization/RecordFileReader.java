@@ -0,0 +1,233 @@
+package ru.prestu.samples.serialization;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+Чтение файла записей, созданного RecordFileWriter.
+* get(n) - произвольный доступ за O(1): позиционное чтение смещения из индекса, затем одного кадра
+* iterator() и cursor() - последовательное чтение через буфер постоянного размера
+Позиционные чтения FileChannel не меняют позицию канала, поэтому get можно вызывать из разных потоков.
+*/
+public class RecordFileReader implements Closeable, Iterable<DataObject> {
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int SCRATCH_BUFFER = 4 * 1024;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final long count;
+    private final long dataSize;
+    //Буфер кадра для get и readInto в каждом потоке: декодированный объект не ссылается на буфер
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SCRATCH_BUFFER));
+
+    //Видны записи, попавшие в индекс на момент открытия
+    public RecordFileReader(Path file) throws IOException {
+        data = FileChannel.open(file, StandardOpenOption.READ);
+        index = FileChannel.open(RecordFileWriter.indexFile(file), StandardOpenOption.READ);
+        count = index.size() / RecordFileWriter.INDEX_ENTRY;
+        dataSize = data.size();
+    }
+
+    public long size() {
+        return count;
+    }
+
+    public DataObject get(long recordNo) throws IOException {
+        return DataObjectCodec.decode(readScratchFrame(recordNo));
+    }
+
+    //Строки декодируются только при обращении к ним, объект ссылается на свой буфер кадра
+    public LazyDataObject getLazy(long recordNo) throws IOException {
+        return LazyDataObject.decode(readFrame(recordNo));
+    }
+
+    public void readInto(long recordNo, DataObject target) throws IOException {
+        DataObjectCodec.decodeInto(readScratchFrame(recordNo), target);
+    }
+
+    /*
+    Кадр записи без заголовка длины, буфер готов к чтению.
+    Длина берется из заголовка самого кадра, а не из смещения следующей записи: данные сбрасываются раньше индекса,
+    поэтому за последней проиндексированной записью в файле могут лежать еще не проиндексированные кадры.
+    */
+    ByteBuffer readFrame(long recordNo) throws IOException {
+        if (recordNo < 0 || recordNo >= count) throw new IndexOutOfBoundsException("Record " + recordNo + " of " + count);
+        long offset = readOffset(recordNo);
+        ByteBuffer header = ByteBuffer.allocate(RecordFileWriter.FRAME_HEADER);
+        readFully(data, header, offset);
+        int size = checkedSize(header.getInt(0), offset, recordNo);
+        ByteBuffer frame = ByteBuffer.allocate(RecordFileWriter.FRAME_HEADER + size);
+        frame.putInt(size);
+        readFully(data, frame, offset + RecordFileWriter.FRAME_HEADER);
+        frame.position(RecordFileWriter.FRAME_HEADER);
+        return frame;
+    }
+
+    /*
+    Как readFrame, но в буфер потока, без выделения памяти в установившемся режиме.
+    Смещение из индекса читается в тот же буфер, заголовок и кадр, если он помещается, - одним вызовом.
+    Буфер растет под кадр больше себя и остается потоку, пока не превышает READ_BUFFER.
+    */
+    private ByteBuffer readScratchFrame(long recordNo) throws IOException {
+        if (recordNo < 0 || recordNo >= count) throw new IndexOutOfBoundsException("Record " + recordNo + " of " + count);
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        buffer.limit(RecordFileWriter.INDEX_ENTRY);
+        readFully(index, buffer, recordNo * RecordFileWriter.INDEX_ENTRY);
+        long offset = buffer.getLong(0);
+        long available = dataSize - offset;
+        if (available < RecordFileWriter.FRAME_HEADER) throw new EOFException("Truncated record " + recordNo);
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), available));
+        readFully(data, buffer, offset);
+        int length = RecordFileWriter.FRAME_HEADER + checkedSize(buffer.getInt(0), offset, recordNo);
+        if (length > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(length);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+            if (length <= READ_BUFFER) scratch.set(buffer);
+        }
+        if (buffer.position() < length) {
+            buffer.limit(length);
+            readFully(data, buffer, offset + buffer.position());
+        }
+        buffer.limit(length);
+        buffer.position(RecordFileWriter.FRAME_HEADER);
+        return buffer;
+    }
+
+    //Длина из заголовка кадра не должна выводить за конец файла на момент открытия
+    private int checkedSize(int size, long offset, long recordNo) throws IOException {
+        if (size < 0 || size > dataSize - offset - RecordFileWriter.FRAME_HEADER) {
+            throw new IOException("Corrupted frame of record " + recordNo + " at " + offset + ": length " + size);
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<DataObject> iterator() {
+        Cursor cursor = cursor();
+        return new Iterator<DataObject>() {
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public DataObject next() {
+                if (!cursor.hasNext()) throw new NoSuchElementException();
+                try {
+                    return DataObjectCodec.decode(cursor.nextFrame());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /*
+    Последовательное чтение с начала файла через буфер постоянного размера.
+    readInto заполняет переданный объект, поэтому в установившемся режиме чтение почти ничего не выделяет.
+    */
+    public class Cursor {
+
+        private ByteBuffer buffer = emptyBuffer(READ_BUFFER);
+        private long position = count == 0 ? dataSize : offsetOf(0);
+        private long remaining = count;
+
+        private Cursor() {
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        //false, если записей больше нет
+        public boolean readInto(DataObject target) throws IOException {
+            if (remaining == 0) return false;
+            DataObjectCodec.decodeInto(nextFrame(), target);
+            return true;
+        }
+
+        private ByteBuffer nextFrame() throws IOException {
+            ensure(RecordFileWriter.FRAME_HEADER);
+            int size = buffer.getInt(buffer.position());
+            if (size < 0) throw new IOException("Corrupted frame at " + (position - buffer.remaining()) + ": length " + size);
+            ensure(RecordFileWriter.FRAME_HEADER + size);
+            buffer.position(buffer.position() + RecordFileWriter.FRAME_HEADER);
+            remaining--;
+            return buffer;
+        }
+
+        //Дочитывает файл, пока в буфере не окажется bytes байт; буфер растет только под кадр больше себя
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            if (bytes > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < bytes) {
+                int read = data.read(buffer, position);
+                if (read < 0) throw new EOFException("Truncated record file");
+                position += read;
+            }
+            buffer.flip();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    private long offsetOf(long recordNo) {
+        try {
+            return readOffset(recordNo);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long readOffset(long recordNo) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(RecordFileWriter.INDEX_ENTRY);
+        readFully(index, offset, recordNo * RecordFileWriter.INDEX_ENTRY);
+        return offset.getLong(0);
+    }
+
+    private static ByteBuffer emptyBuffer(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of " + channel);
+            position += read;
+        }
+    }
+
+}
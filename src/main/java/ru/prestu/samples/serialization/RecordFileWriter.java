@@ -0,0 +1,160 @@
+package ru.prestu.samples.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+Файл записей DataObject, только дописывание в конец.
+* Файл данных: кадры [int длина][DataObjectCodec], без заголовков и метаданных классов
+* Индекс <файл>.idx: long смещение кадра для каждой записи, пишется блоками по INDEX_BLOCK записей
+* Память постоянна: буфер данных и буфер блока индекса выделяются один раз
+Запись видна читателю после flush() или close().
+При открытии существующего файла хвост данных за последней проиндексированной записью (кадры, записанные до сбоя,
+но не попавшие в индекс) и неполная запись индекса отрезаются, чтобы последовательное чтение не встретило их
+между проиндексированными записями.
+*/
+public class RecordFileWriter implements Closeable {
+
+    static final int FRAME_HEADER = Integer.BYTES;
+    static final int INDEX_ENTRY = Long.BYTES;
+    static final int INDEX_BLOCK = 1024;
+    private static final int DATA_BUFFER = 64 * 1024;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ByteBuffer dataBuffer = ByteBuffer.allocateDirect(DATA_BUFFER);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(INDEX_BLOCK * INDEX_ENTRY);
+    //Смещение следующего кадра с учетом еще не сброшенного буфера
+    private long position;
+    private long count;
+
+    //Существующий файл дописывается, число записей берется из индекса
+    public RecordFileWriter(Path file) throws IOException {
+        data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = null;
+        try {
+            index = FileChannel.open(indexFile(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            count = index.size() / INDEX_ENTRY;
+            index.truncate(count * INDEX_ENTRY);
+            index.position(count * INDEX_ENTRY);
+            position = indexedEnd(index);
+            data.truncate(position);
+            data.position(position);
+        } catch (IOException | RuntimeException e) {
+            if (index != null) index.close();
+            data.close();
+            throw e;
+        }
+        this.index = index;
+    }
+
+    //Конец последнего проиндексированного кадра по его заголовку
+    private long indexedEnd(FileChannel index) throws IOException {
+        if (count == 0) return 0;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+        RecordFileReader.readFully(index, entry, (count - 1) * INDEX_ENTRY);
+        long offset = entry.getLong(0);
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        RecordFileReader.readFully(data, header, offset);
+        int size = header.getInt(0);
+        if (size < 0 || offset + FRAME_HEADER + size > data.size()) {
+            throw new IOException("Corrupted frame of record " + (count - 1) + " at " + offset + ": length " + size);
+        }
+        return offset + FRAME_HEADER + size;
+    }
+
+    public static Path indexFile(Path file) {
+        return Paths.get(file.toString() + ".idx");
+    }
+
+    //Возвращает номер записи для RecordFileReader.get
+    public long append(DataObject obj) throws IOException {
+        int size = DataObjectCodec.encodedSize(obj);
+        int frame = FRAME_HEADER + size;
+        if (frame > dataBuffer.remaining()) flushData();
+        ByteBuffer target = frame > dataBuffer.capacity() ? ByteBuffer.allocate(frame) : dataBuffer;
+        target.putInt(size);
+        DataObjectCodec.encode(obj, target);
+        if (target != dataBuffer) {
+            target.flip();
+            writeFully(data, target);
+        }
+        return addIndexEntry(frame);
+    }
+
+    /*
+    Дописывает готовые кадры, закодированные вне писателя (ParallelBatchWriter).
+    Свой буфер сбрасывается первым, затем кадры пишутся одним gathering write в порядке буферов и попадают в индекс.
+    frames - размеры кадров с заголовком по порядку; возвращает номер первой записи.
+    */
+    long appendFrames(ByteBuffer[] buffers, int[] frames) throws IOException {
+        flushData();
+        writeFully(data, buffers);
+        long first = count;
+        for (int frame : frames) addIndexEntry(frame);
+        return first;
+    }
+
+    long addIndexEntry(int frame) throws IOException {
+        indexBuffer.putLong(position);
+        position += frame;
+        if (!indexBuffer.hasRemaining()) {
+            flushData();
+            flushIndex();
+        }
+        return count++;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    //Данные сбрасываются раньше индекса, чтобы индекс никогда не указывал за конец файла
+    public void flush() throws IOException {
+        flushData();
+        flushIndex();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            data.close();
+            index.close();
+        }
+    }
+
+    private void flushData() throws IOException {
+        dataBuffer.flip();
+        writeFully(data, dataBuffer);
+        dataBuffer.clear();
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        writeFully(index, indexBuffer);
+        indexBuffer.clear();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //Один вызов может записать не все буферы (например, больше IOV_MAX), тогда пишется остаток
+    static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        int offset = 0;
+        while (offset < buffers.length) {
+            channel.write(buffers, offset, buffers.length - offset);
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) offset++;
+        }
+    }
+
+}
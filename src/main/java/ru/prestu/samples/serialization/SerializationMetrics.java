@@ -0,0 +1,263 @@
+package ru.prestu.samples.serialization;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import ru.prestu.samples.metrics.Histogram;
+import ru.prestu.samples.metrics.Jmx;
+
+/*
+Метрики сериализации: размер и время кодирования/декодирования каждого верхнеуровневого объекта.
+* Гистограммы: байты на объект, время записи, время чтения
+* Разбивка по классу верхнеуровневого объекта: число объектов, байты, из них байты описаний классов (ObjectStreamClass),
+  остальное - данные полей
+* Заполняются MeteredObjectOutputStream, MeteredObjectInputStream и MeteredCodec
+* Каждый набор метрик регистрируется в JMX как SerializationMetricsMXBean
+*/
+public final class SerializationMetrics implements SerializationMetricsMXBean {
+
+    static final String JMX_TYPE = "SerializationMetrics";
+
+    private static final ConcurrentMap<String, SerializationMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Histogram objectBytes = new Histogram();
+    private final Histogram encodeTime = new Histogram();
+    private final Histogram decodeTime = new Histogram();
+    private final ConcurrentMap<String, ClassStats> classes = new ConcurrentHashMap<>();
+
+    private SerializationMetrics(String name) {
+        this.name = name;
+    }
+
+    //Метрики с этим именем, при первом обращении регистрируются в JMX
+    public static SerializationMetrics forName(String name) {
+        SerializationMetrics metrics = REGISTRY.get(name);
+        if (metrics != null) return metrics;
+        SerializationMetrics created = new SerializationMetrics(name);
+        metrics = REGISTRY.putIfAbsent(name, created);
+        if (metrics != null) return metrics;
+        Jmx.register(JMX_TYPE, name, created);
+        return created;
+    }
+
+    public void recordEncode(Class<?> type, long bytes, long descriptorBytes, long nanos) {
+        objectBytes.record(bytes);
+        encodeTime.record(nanos);
+        ClassStats stats = classStats(type);
+        stats.encoded.increment();
+        stats.bytes.add(bytes);
+        stats.descriptorBytes.add(descriptorBytes);
+    }
+
+    public void recordDecode(Class<?> type, long bytes, long nanos) {
+        decodeTime.record(nanos);
+        ClassStats stats = classStats(type);
+        stats.decoded.increment();
+        stats.decodedBytes.add(bytes);
+    }
+
+    public Snapshot snapshot() {
+        Map<String, ClassSnapshot> byClass = new TreeMap<>();
+        classes.forEach((type, stats) -> byClass.put(type, stats.snapshot()));
+        return new Snapshot(name, objectBytes.snapshot(), encodeTime.snapshot(), decodeTime.snapshot(), byClass);
+    }
+
+    private ClassStats classStats(Class<?> type) {
+        String key = type == null ? "null" : type.getName();
+        ClassStats stats = classes.get(key);
+        return stats != null ? stats : classes.computeIfAbsent(key, k -> new ClassStats());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getEncoded() {
+        return encodeTime.snapshot().count();
+    }
+
+    @Override
+    public long getDecoded() {
+        return decodeTime.snapshot().count();
+    }
+
+    @Override
+    public long getEncodeP50() {
+        return encodeTime.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getEncodeP99() {
+        return encodeTime.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getDecodeP50() {
+        return decodeTime.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getDecodeP99() {
+        return decodeTime.snapshot().percentile(99);
+    }
+
+    @Override
+    public double getMeanBytes() {
+        return objectBytes.snapshot().mean();
+    }
+
+    @Override
+    public long getBytesP99() {
+        return objectBytes.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getBytesMax() {
+        return objectBytes.snapshot().max();
+    }
+
+    @Override
+    public Map<String, Long> getBytesByClass() {
+        return byClass(ClassSnapshot::bytes);
+    }
+
+    @Override
+    public Map<String, Long> getDescriptorBytesByClass() {
+        return byClass(ClassSnapshot::descriptorBytes);
+    }
+
+    @Override
+    public Map<String, Long> getPayloadBytesByClass() {
+        return byClass(ClassSnapshot::payloadBytes);
+    }
+
+    private Map<String, Long> byClass(ToLongFunction<ClassSnapshot> value) {
+        Map<String, Long> result = new TreeMap<>();
+        classes.forEach((type, stats) -> result.put(type, value.applyAsLong(stats.snapshot())));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        objectBytes.reset();
+        encodeTime.reset();
+        decodeTime.reset();
+        classes.clear();
+    }
+
+    private static final class ClassStats {
+
+        final LongAdder encoded = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder descriptorBytes = new LongAdder();
+        final LongAdder decoded = new LongAdder();
+        final LongAdder decodedBytes = new LongAdder();
+
+        ClassSnapshot snapshot() {
+            return new ClassSnapshot(encoded.sum(), bytes.sum(), descriptorBytes.sum(), decoded.sum(), decodedBytes.sum());
+        }
+    }
+
+    public static final class ClassSnapshot {
+
+        private final long encoded;
+        private final long bytes;
+        private final long descriptorBytes;
+        private final long decoded;
+        private final long decodedBytes;
+
+        ClassSnapshot(long encoded, long bytes, long descriptorBytes, long decoded, long decodedBytes) {
+            this.encoded = encoded;
+            this.bytes = bytes;
+            this.descriptorBytes = descriptorBytes;
+            this.decoded = decoded;
+            this.decodedBytes = decodedBytes;
+        }
+
+        public long encoded() {
+            return encoded;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public long descriptorBytes() {
+            return descriptorBytes;
+        }
+
+        public long payloadBytes() {
+            return bytes - descriptorBytes;
+        }
+
+        public long decoded() {
+            return decoded;
+        }
+
+        public long decodedBytes() {
+            return decodedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "encoded=" + encoded + " bytes=" + bytes + " descriptor=" + descriptorBytes + " payload=" + payloadBytes()
+                    + " decoded=" + decoded + " decodedBytes=" + decodedBytes;
+        }
+    }
+
+    public static final class Snapshot {
+
+        private final String name;
+        private final Histogram.Snapshot objectBytes;
+        private final Histogram.Snapshot encodeTime;
+        private final Histogram.Snapshot decodeTime;
+        private final Map<String, ClassSnapshot> classes;
+
+        Snapshot(String name, Histogram.Snapshot objectBytes, Histogram.Snapshot encodeTime, Histogram.Snapshot decodeTime,
+                 Map<String, ClassSnapshot> classes) {
+            this.name = name;
+            this.objectBytes = objectBytes;
+            this.encodeTime = encodeTime;
+            this.decodeTime = decodeTime;
+            this.classes = classes;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Histogram.Snapshot objectBytes() {
+            return objectBytes;
+        }
+
+        public Histogram.Snapshot encodeTime() {
+            return encodeTime;
+        }
+
+        public Histogram.Snapshot decodeTime() {
+            return decodeTime;
+        }
+
+        //По имени класса верхнеуровневого объекта
+        public Map<String, ClassSnapshot> classes() {
+            return classes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(name)
+                    .append("\n  bytes ").append(objectBytes)
+                    .append("\n  encode ").append(encodeTime)
+                    .append("\n  decode ").append(decodeTime);
+            classes.forEach((type, stats) -> builder.append("\n  ").append(type).append(": ").append(stats));
+            return builder.toString();
+        }
+    }
+
+}
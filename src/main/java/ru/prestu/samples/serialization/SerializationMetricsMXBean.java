@@ -0,0 +1,37 @@
+package ru.prestu.samples.serialization;
+
+import java.util.Map;
+
+//Метрики сериализации в JMX: ru.prestu.samples:type=SerializationMetrics,name=<имя>, время в наносекундах
+public interface SerializationMetricsMXBean {
+
+    String getName();
+
+    long getEncoded();
+
+    long getDecoded();
+
+    long getEncodeP50();
+
+    long getEncodeP99();
+
+    long getDecodeP50();
+
+    long getDecodeP99();
+
+    double getMeanBytes();
+
+    long getBytesP99();
+
+    long getBytesMax();
+
+    //По имени класса верхнеуровневого объекта
+    Map<String, Long> getBytesByClass();
+
+    Map<String, Long> getDescriptorBytesByClass();
+
+    Map<String, Long> getPayloadBytesByClass();
+
+    void reset();
+
+}
@@ -0,0 +1,45 @@
+package ru.prestu.samples.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+//Чтение потока SessionObjectOutputStream: новые описания классов запоминаются, номера заменяются сохраненными
+public class SessionObjectInputStream extends ObjectInputStream {
+
+    private final List<ObjectStreamClass> descriptors = new ArrayList<>();
+
+    public SessionObjectInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+
+    public Object readMessage() throws IOException, ClassNotFoundException {
+        return readObject();
+    }
+
+    @Override
+    protected void readStreamHeader() throws IOException {
+        super.readStreamHeader();
+        short magic = readShort();
+        if (magic != SessionObjectOutputStream.SESSION_MAGIC) throw new StreamCorruptedException("Not a session stream: " + magic);
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+        int header = Varint.readUnsigned(this);
+        int id = header >>> 1;
+        if ((header & 1) == 0) {
+            if (id >= descriptors.size()) throw new StreamCorruptedException("Unknown class descriptor " + id);
+            return descriptors.get(id);
+        }
+        if (id != descriptors.size()) throw new StreamCorruptedException("Class descriptor " + id + " out of order");
+        ObjectStreamClass desc = super.readClassDescriptor();
+        descriptors.add(desc);
+        return desc;
+    }
+
+}
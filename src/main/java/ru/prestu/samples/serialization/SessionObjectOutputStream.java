@@ -0,0 +1,60 @@
+package ru.prestu.samples.serialization;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+Поток сообщений с общими описаниями классов на все соединение (или файл).
+* Заголовок потока и метка режима пишутся один раз при создании
+* writeMessage пишет объект и делает reset(): ссылки на объекты прошлых сообщений не удерживаются
+* Описание класса отправляется целиком только при первой встрече, дальше - номер из реестра сессии;
+  после reset() стандартный поток повторил бы описания полностью
+Описание в потоке: varint (номер << 1 | признак нового описания), для нового - затем стандартное описание.
+Читается только SessionObjectInputStream.
+*/
+public class SessionObjectOutputStream extends ObjectOutputStream {
+
+    static final short SESSION_MAGIC = 0x5344;
+
+    //Реестр сессии: описания, уже отправленные читателю
+    private final Map<ObjectStreamClass, Integer> descriptors = new IdentityHashMap<>();
+
+    public SessionObjectOutputStream(OutputStream out) throws IOException {
+        super(out);
+    }
+
+    //Сообщение сразу выталкивается в нижележащий поток
+    public void writeMessage(Object message) throws IOException {
+        writeObject(message);
+        reset();
+        flush();
+    }
+
+    public int descriptorCount() {
+        return descriptors.size();
+    }
+
+    @Override
+    protected void writeStreamHeader() throws IOException {
+        super.writeStreamHeader();
+        writeShort(SESSION_MAGIC);
+    }
+
+    @Override
+    protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+        Integer id = descriptors.get(desc);
+        if (id != null) {
+            Varint.writeUnsigned(this, id << 1);
+            return;
+        }
+        id = descriptors.size();
+        descriptors.put(desc, id);
+        Varint.writeUnsigned(this, id << 1 | 1);
+        super.writeClassDescriptor(desc);
+    }
+
+}
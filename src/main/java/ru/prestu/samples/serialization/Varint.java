@@ -0,0 +1,42 @@
+package ru.prestu.samples.serialization;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+//Целые переменной длины: по 7 бит в байте, старший бит - признак продолжения
+final class Varint {
+
+    private Varint() {
+    }
+
+    static void writeUnsigned(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readUnsigned(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    //ZigZag: небольшие отрицательные числа тоже занимают мало байт
+    static void writeSigned(DataOutput out, int value) throws IOException {
+        writeUnsigned(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int readSigned(DataInput in) throws IOException {
+        int value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -0,0 +1,29 @@
+package ru.prestu.samples.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Версия для Java 21+ (META-INF/versions/21 в multi-release jar).
+Виртуальный поток на время блокировки освобождает поток-носитель, кроме ожидания внутри synchronized:
+там виртуальный поток "прикалывается" к носителю. Поэтому по умолчанию счетчики используют ReentrantLock.
+*/
+public final class ExecutionMode {
+
+    private ExecutionMode() {
+    }
+
+    public static boolean isVirtual() {
+        return true;
+    }
+
+    //Отдельный виртуальный поток на каждую задачу
+    public static ExecutorService newPerTaskExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    public static CounterType defaultCounterType() {
+        return CounterType.REENTRANT_LOCK;
+    }
+
+}
@@ -2,6 +2,8 @@ package ru.prestu.samples.concurrency;
 
 import static java.lang.Thread.sleep;
 import static java.lang.Thread.yield;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -9,6 +11,8 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.*;
 import org.junit.jupiter.api.Test;
+import ru.prestu.samples.metrics.Histogram;
+import ru.prestu.samples.metrics.Jmx;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class ConcurrencyTest {
@@ -81,6 +85,7 @@ public class ConcurrencyTest {
         secondThread.start();
         firstThread.join();
         secondThread.join();
+        TraceRecorder.flush();
         System.out.println(resource.getI());
         assertEquals(7, resource.getI());
     }
@@ -100,9 +105,212 @@ public class ConcurrencyTest {
         assertEquals(7, SynchronizedStaticResource.getI());
     }
 
+    @Test
+    public void testCounterTypes() throws InterruptedException {
+        int threads = 4;
+        int increments = 10000;
+        for (CounterType type : CounterType.values()) {
+            Counter counter = type.create(new Object());
+            counter.setI(5);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int k = 0; k < increments; k++) counter.increaseI();
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) worker.join();
+            assertEquals(5 + threads * increments, counter.getI(), type.name());
+        }
+
+        String property = "samples.test.counter";
+        assertEquals(CounterType.ATOMIC, CounterType.fromProperty(property, CounterType.ATOMIC));
+        System.setProperty(property, " striped ");
+        try {
+            assertEquals(CounterType.STRIPED, CounterType.fromProperty(property, CounterType.ATOMIC));
+            System.setProperty(property, "SPINLOCK");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CounterType.fromProperty(property, CounterType.ATOMIC));
+            assertTrue(e.getMessage().contains("SPINLOCK") && e.getMessage().contains("STAMPED_LOCK"), e.getMessage());
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void testExecutionMode() throws InterruptedException {
+        //Виртуальные потоки идут в паре с ReentrantLock, платформенные - с synchronized
+        assertEquals(ExecutionMode.isVirtual() ? CounterType.REENTRANT_LOCK : CounterType.MONITOR, ExecutionMode.defaultCounterType());
+        /*
+        Из multi-release jar на Java 21+ должна загружаться версия из META-INF/versions/21.
+        Surefire берет классы из target/classes, поэтому эту ветку проверяет только failsafe по собранному jar
+        в профиле java21 (mvn verify на JDK 21+).
+        */
+        String spec = System.getProperty("java.specification.version");
+        int javaVersion = spec.startsWith("1.") ? Integer.parseInt(spec.substring(2)) : Integer.parseInt(spec);
+        if ("jar".equals(ExecutionMode.class.getResource("ExecutionMode.class").getProtocol()) && javaVersion >= 21) {
+            assertTrue(ExecutionMode.isVirtual());
+        }
+
+        //Поток на задачу: все задачи блокируются одновременно, пока не стартует последняя
+        int tasks = 64;
+        CountDownLatch started = new CountDownLatch(tasks);
+        CountDownLatch finished = new CountDownLatch(tasks);
+        ExecutorService executor = ExecutionMode.newPerTaskExecutor();
+        try {
+            for (int t = 0; t < tasks; t++) {
+                executor.execute(() -> {
+                    started.countDown();
+                    try {
+                        if (started.await(10, TimeUnit.SECONDS)) finished.countDown();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTraceRecorder() throws InterruptedException {
+        //События печатаются в порядке записи
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        TraceRecorder recorder = new TraceRecorder(16, lines::add);
+        TraceRecorder.Phase[] phases = TraceRecorder.Phase.values();
+        String[] texts = {"in queue", "started", "finished"};
+        for (int k = 0; k < 12; k++) recorder.add(phases[k % phases.length]);
+        recorder.stop();
+        assertEquals(12, lines.size());
+        assertEquals(0, recorder.droppedEvents());
+        long previous = Long.MIN_VALUE;
+        for (int k = 0; k < lines.size(); k++) {
+            String line = lines.get(k);
+            assertTrue(line.endsWith(Thread.currentThread().getName() + " " + texts[k % texts.length]), line);
+            long time = Long.parseLong(line.substring(0, line.indexOf(' ')));
+            assertTrue(time >= previous);
+            previous = time;
+        }
+
+        //Время STARTED берется под блокировкой, а событие пишется после нее: печатается переданное время
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        TraceRecorder deferred = new TraceRecorder(16, started::add);
+        deferred.add(TraceRecorder.Phase.STARTED, 42);
+        deferred.stop();
+        assertEquals(1, started.size());
+        assertTrue(started.get(0).startsWith("42 [") && started.get(0).endsWith(" started"), started.get(0));
+
+        //Пока фоновый поток занят, в буфер помещается capacity событий, остальные отбрасываются
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> printed = Collections.synchronizedList(new ArrayList<>());
+        TraceRecorder full = new TraceRecorder(8, line -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            printed.add(line);
+        });
+        full.add(TraceRecorder.Phase.IN_QUEUE);
+        blocked.await();
+        for (int k = 0; k < 20; k++) full.add(TraceRecorder.Phase.FINISHED);
+        assertEquals(12, full.droppedEvents());
+        release.countDown();
+        full.stop();
+        assertEquals(9, printed.size());
+        assertTrue(printed.get(0).endsWith("in queue"));
+    }
+
     //Для переменных, помеченных volatile, кэширование не происходит, все пишется/читается в/из основной памяти
     private volatile static int volatileVar;
 
+    @Test
+    public void testLockStats() throws Exception {
+        //Без -Dsamples.lockstats=true счетчики CounterType статистику не получают
+        assertEquals(LockStats.ENABLED, LockStats.forLock(new Object(), CounterType.MONITOR) != null);
+
+        int threads = 4;
+        int increments = 10000;
+        List<LockStats> stats = new ArrayList<>();
+        List<Counter> counters = new ArrayList<>();
+        stats.add(LockStats.forName("ConcurrencyTest/MONITOR"));
+        counters.add(new MonitorCounter(new Object(), stats.get(0).newProbe()));
+        stats.add(LockStats.forName("ConcurrencyTest/REENTRANT_LOCK"));
+        counters.add(new ReentrantLockCounter(stats.get(1).newProbe()));
+        stats.add(LockStats.forName("ConcurrencyTest/STAMPED_LOCK"));
+        counters.add(new StampedLockCounter(stats.get(2).newProbe()));
+        for (int c = 0; c < counters.size(); c++) {
+            Counter counter = counters.get(c);
+            stats.get(c).reset();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int k = 0; k < increments; k++) counter.increaseI();
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) worker.join();
+            assertEquals(threads * increments, counter.getI());
+
+            LockStats.Snapshot snapshot = stats.get(c).snapshot();
+            assertEquals(threads * increments, snapshot.contended() + snapshot.uncontended());
+            //Время замеряется по выборке захватов
+            assertTrue(snapshot.waitTime().count() > 0 && snapshot.waitTime().count() <= threads * increments);
+            assertEquals(snapshot.waitTime().count(), snapshot.holdTime().count());
+            assertEquals(0, snapshot.queueDepth());
+            assertTrue(snapshot.waitTime().percentile(50) <= snapshot.waitTime().max());
+        }
+        assertTrue(LockStats.snapshotAll().containsKey("ConcurrencyTest/MONITOR"));
+        Object acquisitions = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(Jmx.objectName("LockStats", "ConcurrencyTest/MONITOR"), "Acquisitions");
+        assertEquals((long) threads * increments, acquisitions);
+
+        //Разные блокировки под одним именем: по одному потоку на блокировку, конкуренции нет
+        LockStats shared = LockStats.forName("ConcurrencyTest/PER_LOCK");
+        shared.reset();
+        Thread[] owners = new Thread[threads];
+        List<WeakReference<LockStats.Probe>> ownerProbes = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            LockStats.Probe probe = shared.newProbe();
+            ownerProbes.add(new WeakReference<>(probe));
+            Counter counter = new MonitorCounter(new Object(), probe);
+            owners[t] = new Thread(() -> {
+                for (int k = 0; k < increments; k++) counter.increaseI();
+            });
+            owners[t].start();
+        }
+        for (Thread owner : owners) owner.join();
+        LockStats.Snapshot perLock = shared.snapshot();
+        assertEquals(threads * increments, perLock.uncontended());
+        assertEquals(0, perLock.contended());
+        assertEquals(0, perLock.queueDepth());
+        assertEquals(0, perLock.maxQueueDepth());
+        //Блокировки собраны сборщиком мусора, а их счетчики остаются в итогах вместе с выборкой в гистограммах
+        owners = null;
+        for (int k = 0; k < 100 && ownerProbes.stream().anyMatch(reference -> reference.get() != null); k++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(ownerProbes.stream().allMatch(reference -> reference.get() == null));
+        assertEquals(threads * increments, shared.snapshot().uncontended());
+
+        //Перцентили гистограммы точны до ширины корзины (~3%)
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) histogram.record(value);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.count());
+        assertEquals(100000, snapshot.max());
+        assertEquals(50000.5, snapshot.mean(), 0.001);
+        assertEquals(50000, snapshot.percentile(50), 50000 * 0.04);
+        assertEquals(99000, snapshot.percentile(99), 99000 * 0.04);
+        assertEquals(100000, snapshot.percentile(100));
+        assertEquals(1, snapshot.percentile(0));
+    }
+
     @Test
     public void testVolatileVars() throws InterruptedException {
         Thread write = new Thread() {
@@ -299,6 +507,67 @@ public class ConcurrencyTest {
         operator.join();
     }
 
+    //Передача Operator -> Machine через неблокирующие очереди вместо wait/notify
+    @Test
+    public void testSpscRingBuffer() throws InterruptedException {
+        BoundedQueue<Integer> queue = new SpscRingBuffer<>(100);
+        assertEquals(128, queue.capacity());
+        int count = 100000;
+        Thread operator = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) queue.put(i, WaitStrategy.YIELD);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        });
+        operator.start();
+        List<Integer> batch = new ArrayList<>();
+        int expected = 0;
+        while (expected < count) {
+            batch.clear();
+            queue.drainTo(batch, 64, WaitStrategy.PARK);
+            for (int value : batch) assertEquals(expected++, value);
+        }
+        operator.join();
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testMpscQueue() throws InterruptedException {
+        BoundedQueue<int[]> queue = new MpscQueue<>(64);
+        int operators = 4;
+        int count = 20000;
+        Thread[] threads = new Thread[operators];
+        for (int o = 0; o < operators; o++) {
+            int id = o;
+            threads[o] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) queue.put(new int[] {id, i}, WaitStrategy.PARK);
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                }
+            });
+            threads[o].start();
+        }
+        //Порядок внутри каждого производителя сохраняется
+        int[] next = new int[operators];
+        List<int[]> batch = new ArrayList<>();
+        for (int received = 0; received < operators * count; ) {
+            if (received % 2 == 0) {
+                int[] message = queue.take(WaitStrategy.YIELD);
+                assertEquals(next[message[0]]++, message[1]);
+                received++;
+            } else {
+                batch.clear();
+                received += queue.drainTo(batch, 32, WaitStrategy.PARK);
+                for (int[] message : batch) assertEquals(next[message[0]]++, message[1]);
+            }
+        }
+        for (Thread thread : threads) thread.join();
+        for (int o = 0; o < operators; o++) assertEquals(count, next[o]);
+        assertEquals(0, queue.size());
+    }
+
     @Test
     public void testCallable() throws Exception {
         int expected = 10;
@@ -308,5 +577,46 @@ public class ConcurrencyTest {
         assertEquals(expected, futureTask.get());
     }
 
+    @Test
+    public void testWorkStealingExecutor() throws Exception {
+        try (WorkStealingExecutor executor = new WorkStealingExecutor(4)) {
+            //Вместо FutureTask на отдельном потоке
+            assertEquals(10, executor.submit(new MyCallable(10)).thenApply(value -> value * 2).get() / 2);
+
+            //Вместо 10000 потоков, запускаемых и ожидаемых по одному
+            AtomicInteger counter = new AtomicInteger();
+            List<Runnable> runnables = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) runnables.add(counter::incrementAndGet);
+            executor.runAll(runnables).get();
+            assertEquals(10000, counter.get());
+
+            List<Callable<Integer>> callables = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) callables.add(new MyCallable(i));
+            List<Integer> results = executor.submitAll(callables).get();
+            for (int i = 0; i < 1000; i++) assertEquals(i, results.get(i).intValue());
+
+            callables.add(() -> {
+                throw new IllegalStateException("failed task");
+            });
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> executor.submitAll(callables).get());
+            assertEquals(IllegalStateException.class, failure.getCause().getClass());
+            //Сообщается ошибка задачи с наименьшим номером, хотя последняя задача падает первой
+            List<Callable<Integer>> failing = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                int index = i;
+                failing.add(() -> {
+                    if (index < 63) sleep(1);
+                    throw new IllegalStateException("task " + index);
+                });
+            }
+            failure = assertThrows(ExecutionException.class, () -> executor.submitAll(failing).get());
+            assertEquals("task 0", failure.getCause().getMessage());
+
+            executor.submit(() -> counter.incrementAndGet());
+            assertTrue(executor.awaitQuiescence(10, TimeUnit.SECONDS));
+            assertEquals(10001, counter.get());
+        }
+    }
+
 }
 
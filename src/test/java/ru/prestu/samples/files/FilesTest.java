@@ -13,14 +13,40 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.StreamTokenizer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.BeforeEach;
@@ -193,6 +219,401 @@ public class FilesTest {
         assertTrue(!file.exists());
     }
 
+    @Test
+    public void testByteTokenizer() throws IOException {
+        File file = new File("tmp");
+        PrintWriter printWriter = new PrintWriter(new FileWriter(file));
+        printWriter.print("Some ");
+        printWriter.printf("%s %d", "notebook", 5);
+        printWriter.print(" -12 3.25 .5 1e3 -2.5E-2 9223372036854775807 9999999999999999999 9300000000000000000 x-1.2 слово ; 0.1");
+        printWriter.close();
+
+        //Окно в 24 байта, чтобы токены попадали на границы отображений
+        try (ByteTokenizer tokenizer = ByteTokenizer.open(file.toPath(), 24)) {
+            assertEquals(StreamTokenizer.TT_WORD, tokenizer.nextToken());
+            assertTrue(tokenizer.tokenEquals("Some".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(0, tokenizer.tokenOffset());
+            assertEquals(StreamTokenizer.TT_WORD, tokenizer.nextToken());
+            assertEquals("notebook", tokenizer.sval());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(5, tokenizer.intValue());
+            assertEquals(5, tokenizer.doubleValue(), 0.0000001);
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(-12L, tokenizer.longValue());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(3.25, tokenizer.doubleValue());
+            assertThrows(NumberFormatException.class, tokenizer::intValue);
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(0.5, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(1000.0, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(-0.025, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(Long.MAX_VALUE, tokenizer.longValue());
+            assertThrows(NumberFormatException.class, tokenizer::intValue);
+            //19 цифр не помещаются в точную мантиссу
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(9999999999999999999.0, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(9300000000000000000.0, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_WORD, tokenizer.nextToken());
+            assertEquals("x-1.2", tokenizer.sval());
+            assertEquals(StreamTokenizer.TT_WORD, tokenizer.nextToken());
+            assertEquals("слово", tokenizer.sval());
+            assertEquals(';', tokenizer.nextToken());
+            assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+            assertEquals(0.1, tokenizer.doubleValue());
+            assertEquals(StreamTokenizer.TT_EOF, tokenizer.nextToken());
+            assertEquals(StreamTokenizer.TT_EOF, tokenizer.nextToken());
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(32);
+        direct.put("  -7 end".getBytes(StandardCharsets.UTF_8)).flip();
+        ByteTokenizer tokenizer = new ByteTokenizer(direct);
+        assertEquals(StreamTokenizer.TT_NUMBER, tokenizer.nextToken());
+        assertEquals(-7, tokenizer.intValue());
+        assertEquals(2, tokenizer.tokenOffset());
+        assertEquals(StreamTokenizer.TT_WORD, tokenizer.nextToken());
+        assertEquals(3, tokenizer.tokenLength());
+        assertEquals(StreamTokenizer.TT_EOF, tokenizer.nextToken());
+
+        file.delete();
+        assertTrue(!file.exists());
+    }
+
+    @Test
+    public void testParallelFileProcessor() throws IOException {
+        File file = new File("tmp");
+        int lines = 20000;
+        long expectedSum = 0;
+        try (PrintWriter printWriter = new PrintWriter(new FileWriter(file))) {
+            for (int k = 0; k < lines; k++) {
+                //Часть строк с \r\n, последняя без перевода строки
+                printWriter.print(k);
+                printWriter.print(k % 3 == 0 ? "\r\n" : k == lines - 1 ? "" : "\n");
+                expectedSum += k;
+            }
+        }
+
+        //Маленькие части, чтобы границы попадали внутрь строк
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ParallelFileProcessor processor = new ParallelFileProcessor(pool, 4096);
+        long[] sum = processor.reduceLines(file.toPath(), () -> new long[2], (acc, line) -> {
+            long value = 0;
+            while (line.hasRemaining()) value = value * 10 + line.get() - '0';
+            acc[0] += value;
+            acc[1]++;
+        }, (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]});
+        assertEquals(expectedSum, sum[0]);
+        assertEquals(lines, sum[1]);
+
+        //combiner вызывается в порядке частей, так что конкатенация сохраняет порядок строк
+        List<Integer> ordered = processor.reduceLines(file.toPath(), ArrayList::new, (acc, line) -> {
+            byte[] bytes = new byte[line.remaining()];
+            line.get(bytes);
+            acc.add(Integer.parseInt(new String(bytes, StandardCharsets.US_ASCII)));
+        }, (a, b) -> {
+            a.addAll(b);
+            return a;
+        });
+        assertEquals(lines, ordered.size());
+        for (int k = 0; k < lines; k++) assertEquals(k, (int) ordered.get(k));
+
+        try (Stream<String> stream = new ParallelFileProcessor(pool, 1024).lines(file.toPath())) {
+            assertEquals(expectedSum, stream.parallel().mapToLong(Long::parseLong).sum());
+        }
+        try (Stream<String> stream = processor.lines(file.toPath())) {
+            assertEquals(Files.readAllLines(file.toPath()), stream.parallel().collect(Collectors.toList()));
+        }
+        pool.shutdown();
+
+        file.delete();
+        assertTrue(!file.exists());
+    }
+
+    @Test
+    public void testAsyncFilePipeline() throws Exception {
+        //Несколько файлов одновременно на одном потоке, лимит в работе меньше суммарного упреждения
+        int files = 6;
+        DirectBufferPool pool = new DirectBufferPool(16 * 1024, 16);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncFilePipeline pipeline = new AsyncFilePipeline(pool, 4, 64 * 1024, executor);
+        Random random = new Random(15);
+        List<byte[]> contents = new ArrayList<>();
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (int k = 0; k < files; k++) {
+            byte[] content = new byte[100_000 + random.nextInt(50_000)];
+            random.nextBytes(content);
+            contents.add(content);
+            Files.write(Paths.get("tmp" + k), content);
+        }
+        for (int k = 0; k < files; k++) {
+            //Четные файлы копируются, нечетные инвертируются на месте
+            UnaryOperator<ByteBuffer> transformer = k % 2 == 0 ? UnaryOperator.identity() : buffer -> {
+                for (int i = buffer.position(); i < buffer.limit(); i++) buffer.put(i, (byte) ~buffer.get(i));
+                return buffer;
+            };
+            results.add(pipeline.transform(Paths.get("tmp" + k), Paths.get("tmp" + k + ".out"), transformer));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        for (int k = 0; k < files; k++) {
+            byte[] expected = contents.get(k).clone();
+            if (k % 2 == 1) for (int i = 0; i < expected.length; i++) expected[i] = (byte) ~expected[i];
+            assertEquals(expected.length, (long) results.get(k).get());
+            assertArrayEquals(expected, Files.readAllBytes(Paths.get("tmp" + k + ".out")));
+        }
+        assertEquals(0, pipeline.inFlightBytes());
+        assertTrue(pool.available() > 0);
+
+        //Ошибка открытия приходит через future
+        CompletableFuture<Long> missing = pipeline.copy(Paths.get("missing"), Paths.get("tmp.out"));
+        ExecutionException error = assertThrows(ExecutionException.class, missing::get);
+        assertTrue(error.getCause() instanceof IOException);
+
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get("tmp0"), StandardOpenOption.READ)) {
+            ByteBuffer buffer = pool.acquire();
+            int read = AsyncFilePipeline.read(channel, buffer, 10).get();
+            assertEquals(buffer.capacity(), read);
+            assertEquals(contents.get(0)[10], buffer.get(0));
+            pool.release(buffer);
+        }
+        executor.shutdown();
+
+        for (int k = 0; k < files; k++) {
+            Files.delete(Paths.get("tmp" + k));
+            Files.delete(Paths.get("tmp" + k + ".out"));
+        }
+    }
+
+    @Test
+    public void testFileTransfer() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(16).nextBytes(content);
+        Path source = Paths.get("tmp");
+        Path copy = Paths.get("tmp.copy");
+        Path received = Paths.get("tmp.received");
+        Files.write(source, content);
+
+        //Файл в файл
+        assertEquals(content.length, FileTransfer.copy(source, copy));
+        assertArrayEquals(content, Files.readAllBytes(copy));
+
+        //Файл в локальный сокет, на принимающей стороне сокет в файл
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<Long> receiver = executor.submit(() -> {
+                try (SocketChannel socket = server.accept();
+                     FileChannel out = FileChannel.open(received, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    return FileTransfer.transferFrom(socket, out, 0, Long.MAX_VALUE);
+                }
+            });
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                assertEquals(content.length, FileTransfer.transferTo(source, client));
+            }
+            assertEquals(content.length, (long) receiver.get(30, TimeUnit.SECONDS));
+            executor.shutdown();
+        }
+        assertArrayEquals(content, Files.readAllBytes(received));
+
+        //Запасной цикл через буферы и передача части файла
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            assertEquals(content.length - 100, FileTransfer.copyBuffered(in, 100, Long.MAX_VALUE, out));
+            assertEquals(1000, FileTransfer.transferTo(in, 5, 1000, out));
+        }
+        byte[] copied = Files.readAllBytes(copy);
+        assertEquals(content.length - 100 + 1000, copied.length);
+        assertArrayEquals(Arrays.copyOfRange(content, 100, content.length), Arrays.copyOf(copied, content.length - 100));
+        assertArrayEquals(Arrays.copyOfRange(content, 5, 1005), Arrays.copyOfRange(copied, content.length - 100, copied.length));
+
+        Files.delete(source);
+        Files.delete(copy);
+        Files.delete(received);
+    }
+
+    @Test
+    public void testWriteAheadLog() throws Exception {
+        Path directory = Paths.get("tmp-wal");
+        int threads = 4;
+        int perThread = 300;
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        //Маленькие сегменты, чтобы журнал переходил на новые
+        try (WriteAheadLog log = new WriteAheadLog(directory, 4096)) {
+            assertThrows(IOException.class, () -> new WriteAheadLog(directory));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<List<CompletableFuture<Long>>>> appenders = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                appenders.add(executor.submit(() -> {
+                    List<CompletableFuture<Long>> appended = new ArrayList<>();
+                    for (int k = 0; k < perThread; k++) appended.add(log.append(("record " + thread + " " + k).getBytes(StandardCharsets.UTF_8)));
+                    return appended;
+                }));
+            }
+            for (Future<List<CompletableFuture<Long>>> appender : appenders) futures.addAll(appender.get());
+            executor.shutdown();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            assertEquals(threads * perThread, log.durableLsn());
+            //Без записей поток фиксации спит в park() без таймаута
+            Thread committer = Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals("wal-committer")).findFirst().get();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (committer.getState() != Thread.State.WAITING && System.nanoTime() < deadline) Thread.sleep(1);
+            assertEquals(Thread.State.WAITING, committer.getState());
+        }
+        Set<Long> lsns = new HashSet<>();
+        for (CompletableFuture<Long> future : futures) lsns.add(future.get());
+        assertEquals(threads * perThread, lsns.size());
+        assertTrue(lsns.contains(0L) && lsns.contains((long) threads * perThread - 1));
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(file -> file.toString().endsWith(".wal")).sorted().collect(Collectors.toList());
+        }
+        assertTrue(segments.size() > 1);
+
+        //Оборванная запись в хвосте отрезается при открытии
+        Path last = segments.get(segments.size() - 1);
+        long validSize = Files.size(last);
+        Files.write(last, new byte[]{0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+        try (WriteAheadLog log = new WriteAheadLog(directory, 4096)) {
+            assertEquals(validSize, Files.size(last));
+            assertEquals(threads * perThread, log.durableLsn());
+            Map<Long, String> records = new HashMap<>();
+            log.replay(0, (lsn, record) -> {
+                byte[] bytes = new byte[record.remaining()];
+                record.get(bytes);
+                records.put(lsn, new String(bytes, StandardCharsets.UTF_8));
+            });
+            assertEquals(threads * perThread, records.size());
+            assertEquals("record 2 7", records.get(futures.get(2 * perThread + 7).get()));
+            assertEquals(threads * perThread, (long) log.append("next".getBytes(StandardCharsets.UTF_8)).get());
+        }
+
+        //append одновременно с двумя close(): каждая future завершается, а принятые записи попадают в журнал
+        WriteAheadLog racingLog = new WriteAheadLog(directory, 4096);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Future<List<CompletableFuture<Long>>>> appenders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            appenders.add(executor.submit(() -> {
+                List<CompletableFuture<Long>> appended = new ArrayList<>();
+                started.countDown();
+                CompletableFuture<Long> future;
+                do {
+                    future = racingLog.append("racing".getBytes(StandardCharsets.UTF_8));
+                    appended.add(future);
+                } while (!future.isCompletedExceptionally());
+                return appended;
+            }));
+        }
+        started.await();
+        Thread.sleep(20);
+        Future<?> concurrentClose = executor.submit(() -> {
+            racingLog.close();
+            return null;
+        });
+        racingLog.close();
+        concurrentClose.get(10, TimeUnit.SECONDS);
+        long committed = 0;
+        for (Future<List<CompletableFuture<Long>>> appender : appenders) {
+            for (CompletableFuture<Long> future : appender.get(10, TimeUnit.SECONDS)) {
+                assertTrue(future.isDone());
+                if (!future.isCompletedExceptionally()) committed++;
+            }
+        }
+        executor.shutdown();
+        try (WriteAheadLog log = new WriteAheadLog(directory, 4096)) {
+            assertEquals(threads * perThread + 1 + committed, log.durableLsn());
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) Files.delete(file);
+        }
+        Files.delete(directory);
+
+        //Сбой при переходе на следующий сегмент: записи уже сброшенного сегмента подтверждаются, остальные - нет
+        Path failingDirectory = Paths.get("tmp-wal-failing");
+        List<CompletableFuture<Long>> failing = new ArrayList<>();
+        byte[] record = new byte[1000];
+        WriteAheadLog failingLog = new WriteAheadLog(failingDirectory, 4096);
+        //Четыре кадра по 1008 байт заполняют сегмент; файл следующего сегмента уже есть, и CREATE_NEW падает
+        Files.createFile(failingDirectory.resolve(String.format("%020d.wal", 4)));
+        for (int k = 0; k < 6; k++) failing.add(failingLog.append(record));
+        for (int k = 0; k < 4; k++) assertEquals(k, (long) failing.get(k).get(10, TimeUnit.SECONDS));
+        for (int k = 4; k < 6; k++) {
+            CompletableFuture<Long> future = failing.get(k);
+            assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(4, failingLog.durableLsn());
+        assertTrue(failingLog.append(record).isCompletedExceptionally());
+        assertThrows(IOException.class, failingLog::close);
+        try (Stream<Path> files = Files.list(failingDirectory)) {
+            for (Path file : files.collect(Collectors.toList())) Files.delete(file);
+        }
+        Files.delete(failingDirectory);
+    }
+
+    @Test
+    public void testRangeLockManager() throws Exception {
+        File file = new File("tmp");
+        try (RandomAccessFile stream = new RandomAccessFile(file, "rw")) {
+            stream.setLength(1024);
+            RangeLockManager manager = new RangeLockManager(stream.getChannel());
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+
+            //Непересекающиеся исключительные диапазоны удерживаются одновременно из разных потоков
+            CountDownLatch bothHeld = new CountDownLatch(2);
+            List<Future<Boolean>> writers = new ArrayList<>();
+            for (int k = 0; k < 2; k++) {
+                long position = k * 512;
+                writers.add(executor.submit(() -> {
+                    try (RangeLockManager.RangeLock lock = manager.lock(position, 512, false)) {
+                        bothHeld.countDown();
+                        return bothHeld.await(10, TimeUnit.SECONDS) && lock.position() == position;
+                    }
+                }));
+            }
+            for (Future<Boolean> writer : writers) assertTrue(writer.get());
+            assertEquals(0, manager.heldRanges());
+
+            //Одинаковые разделяемые диапазоны делят одну FileLock, пересекающийся исключительный ждет
+            RangeLockManager.RangeLock first = manager.lock(0, 100, true);
+            RangeLockManager.RangeLock second = manager.tryLock(0, 100, true);
+            assertNotNull(second);
+            assertEquals(1, manager.heldRanges());
+            assertNull(manager.tryLock(50, 100, false));
+            assertNull(manager.tryLock(50, 100, true));
+            RangeLockManager.RangeLock disjoint = manager.tryLock(100, 100, false);
+            assertNotNull(disjoint);
+            Future<Long> waiting = executor.submit(() -> {
+                try (RangeLockManager.RangeLock lock = manager.lock(50, 100, false)) {
+                    return lock.position();
+                }
+            });
+            Thread.sleep(100);
+            //Пока исключительный запрос ждет, новые читатели того же диапазона не присоединяются
+            assertNull(manager.tryLock(0, 100, true));
+            Future<Long> reader = executor.submit(() -> {
+                try (RangeLockManager.RangeLock lock = manager.lock(0, 100, true)) {
+                    return lock.position();
+                }
+            });
+            first.release();
+            disjoint.release();
+            Thread.sleep(100);
+            assertFalse(waiting.isDone());
+            assertFalse(reader.isDone());
+            second.close();
+            assertEquals(50, (long) waiting.get(10, TimeUnit.SECONDS));
+            assertEquals(0, (long) reader.get(10, TimeUnit.SECONDS));
+            assertEquals(0, manager.heldRanges());
+            executor.shutdown();
+        }
+        file.delete();
+        assertTrue(!file.exists());
+    }
+
     /*
     Блокирование файлов для других пользователей
     */
@@ -1,5 +1,9 @@
 package ru.prestu.samples.serialization;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -7,8 +11,32 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import ru.prestu.samples.files.DirectBufferPool;
+import ru.prestu.samples.metrics.Jmx;
 
 public class SerializationTest {
 
@@ -55,4 +83,772 @@ public class SerializationTest {
         Assertions.assertTrue(!file.exists());
     }
 
+    @Test
+    public void testCodec() throws IOException, ClassNotFoundException {
+        DataObject obj = new DataObject();
+        obj.setI(-42);
+        obj.setS("строка \uD83D\uDE00");
+        obj.setDef(new String[] {"1", "2", "3"});
+        obj.setMyData("long string, only string, nothing, but long string");
+        CustomObject custom = new CustomObject();
+        custom.setB(true);
+        obj.setObj(custom);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes)) {
+            objectOutputStream.writeObject(obj);
+        }
+        DataObject javaClone;
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            javaClone = (DataObject) objectInputStream.readObject();
+        }
+
+        for (ByteBuffer buffer : new ByteBuffer[] {
+                ByteBuffer.allocate(DataObjectCodec.encodedSize(obj)),
+                ByteBuffer.allocateDirect(DataObjectCodec.encodedSize(obj))}) {
+            DataObjectCodec.encode(obj, buffer);
+            Assertions.assertFalse(buffer.hasRemaining());
+            buffer.flip();
+            DataObject clone = DataObjectCodec.decode(buffer);
+            Assertions.assertFalse(buffer.hasRemaining());
+            Assertions.assertEquals(javaClone, clone);
+            Assertions.assertEquals(javaClone.getMyData(), clone.getMyData());
+            Assertions.assertNull(clone.getDef());
+        }
+
+        DataObject empty = new DataObject();
+        ByteBuffer buffer = ByteBuffer.allocate(DataObjectCodec.encodedSize(empty));
+        DataObjectCodec.encode(empty, buffer);
+        buffer.flip();
+        DataObject emptyClone = DataObjectCodec.decode(buffer);
+        Assertions.assertEquals(empty, emptyClone);
+        Assertions.assertNull(emptyClone.getMyData());
+
+        //Испорченная длина строки - одинаковое исключение для heap- и direct-буфера
+        for (ByteBuffer corrupt : new ByteBuffer[] {ByteBuffer.allocate(8), ByteBuffer.allocateDirect(8)}) {
+            corrupt.putInt(100);
+            corrupt.putInt(0);
+            corrupt.flip();
+            Assertions.assertThrows(BufferUnderflowException.class, () -> DataObjectCodec.getString(corrupt));
+            corrupt.rewind();
+            Assertions.assertThrows(BufferUnderflowException.class, () -> DataObjectCodec.getString(corrupt, "a"));
+        }
+    }
+
+    @Test
+    public void testRecordFile() throws IOException {
+        Path path = freshRecordFile();
+        int count = 5000;
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            for (int k = 0; k < count; k++) {
+                Assertions.assertEquals(k, writer.append(record(k)));
+            }
+        }
+        //Дописывание в существующий файл, запись больше буфера записи
+        DataObject large = record(count);
+        large.setMyData(new String(new char[100 * 1024]).replace('\0', 'x'));
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            Assertions.assertEquals(count, writer.append(large));
+        }
+        //Хвост без индекса, как после сбоя до сброса индекса: последний кадр читается по своему заголовку
+        Files.write(path, new byte[64 * 1024], StandardOpenOption.APPEND);
+
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            Assertions.assertEquals(count + 1, reader.size());
+            Assertions.assertEquals(DataObjectCodec.encodedSize(large), reader.readFrame(count).remaining());
+            Assertions.assertEquals(record(1234), reader.get(1234));
+            Assertions.assertEquals(record(0), reader.get(0));
+            Assertions.assertEquals(large.getMyData(), reader.get(count).getMyData());
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> reader.get(count + 1));
+
+            Iterator<DataObject> iterator = reader.iterator();
+            for (int k = 0; k < count; k++) {
+                DataObject obj = iterator.next();
+                Assertions.assertEquals(record(k), obj);
+                Assertions.assertEquals(record(k).getMyData(), obj.getMyData());
+            }
+            Assertions.assertEquals(large, iterator.next());
+            Assertions.assertFalse(iterator.hasNext());
+        }
+
+        //Осиротевший целый кадр в хвосте: писатель при открытии отрезает его, новая запись встает сразу за индексом
+        ByteBuffer orphan = ByteBuffer.allocate(RecordFileWriter.FRAME_HEADER + DataObjectCodec.encodedSize(record(50)));
+        orphan.putInt(DataObjectCodec.encodedSize(record(50)));
+        DataObjectCodec.encode(record(50), orphan);
+        Files.write(path, orphan.array(), StandardOpenOption.APPEND);
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            Assertions.assertEquals(count + 1, writer.append(record(99)));
+        }
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            Assertions.assertEquals(record(99), reader.get(count + 1));
+            Iterator<DataObject> iterator = reader.iterator();
+            for (int k = 0; k <= count; k++) iterator.next();
+            Assertions.assertEquals(record(99), iterator.next());
+            Assertions.assertFalse(iterator.hasNext());
+        }
+
+        //Отрицательная длина в заголовке кадра - ошибка, а не попытка дочитать кадр
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer negative = ByteBuffer.allocate(RecordFileWriter.FRAME_HEADER);
+            negative.putInt(-1);
+            negative.flip();
+            channel.write(negative, 0);
+        }
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            Assertions.assertThrows(IOException.class, () -> reader.cursor().readInto(new DataObject()));
+            Assertions.assertThrows(IOException.class, () -> reader.get(0));
+        } finally {
+            Files.delete(path);
+            Files.delete(RecordFileWriter.indexFile(path));
+        }
+    }
+
+    @Test
+    public void testParallelBatchWriter() throws IOException, InterruptedException {
+        Path path = freshRecordFile();
+        int count = 20000;
+        List<DataObject> batch = new ArrayList<>();
+        for (int k = 0; k < count; k++) batch.add(record(k));
+        //Запись больше буфера пула посреди пакета
+        DataObject large = record(count / 2);
+        large.setMyData(new String(new char[10 * 1024]).replace('\0', 'y'));
+        batch.set(count / 2, large);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        //Пул на 256 КБ: пакет пишется несколькими раундами
+        try (ParallelBatchWriter writer = new ParallelBatchWriter(path, pool, new DirectBufferPool(4096, 64))) {
+            Assertions.assertEquals(0, writer.write(batch));
+            Assertions.assertEquals(count, writer.write(batch.subList(0, 10)));
+            Assertions.assertEquals(count + 10, writer.size());
+        }
+        //Тот же файл дописывается обычным писателем
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            Assertions.assertEquals(count + 10, writer.append(record(-1)));
+        }
+
+        //Ошибка кодирования в одном из отрезков: буферы всех отрезков возвращаются в пул
+        Path failingPath = Paths.get("records-failing.bin");
+        Files.deleteIfExists(failingPath);
+        Files.deleteIfExists(RecordFileWriter.indexFile(failingPath));
+        List<DataObject> failing = new ArrayList<>(batch.subList(0, 4000));
+        failing.set(3000, new BrokenDataObject());
+        DirectBufferPool failingBuffers = new DirectBufferPool(4096, 64);
+        try (ParallelBatchWriter writer = new ParallelBatchWriter(failingPath, pool, failingBuffers)) {
+            Assertions.assertThrows(IllegalStateException.class, () -> writer.write(failing));
+        } finally {
+            Files.delete(failingPath);
+            Files.delete(RecordFileWriter.indexFile(failingPath));
+        }
+        Assertions.assertTrue(failingBuffers.available() > 0);
+
+        //Отрезок, который еще кодирует после ошибки соседнего и отмены invokeAll: write() ждет его выхода
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        List<DataObject> stalled = new ArrayList<>(batch.subList(0, 1000));
+        //Отрезки по 256 записей: 300 - во втором, 600 - в третьем
+        stalled.set(300, new BrokenDataObject(entered));
+        stalled.set(600, new BlockingDataObject(600, entered, proceed));
+        AtomicReference<Throwable> stalledFailure = new AtomicReference<>();
+        try (ParallelBatchWriter writer = new ParallelBatchWriter(failingPath, pool, failingBuffers)) {
+            Thread thread = new Thread(() -> {
+                try {
+                    writer.write(stalled);
+                } catch (Throwable e) {
+                    stalledFailure.set(e);
+                }
+            });
+            thread.start();
+            Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+            thread.join(200);
+            Assertions.assertTrue(thread.isAlive());
+            proceed.countDown();
+            thread.join();
+            Assertions.assertTrue(stalledFailure.get() instanceof IllegalStateException);
+        } finally {
+            Files.delete(failingPath);
+            Files.delete(RecordFileWriter.indexFile(failingPath));
+        }
+        pool.shutdown();
+
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            Assertions.assertEquals(count + 11, reader.size());
+            Assertions.assertEquals(large.getMyData(), reader.get(count / 2).getMyData());
+            Assertions.assertEquals(record(7), reader.get(count + 7));
+            Assertions.assertEquals(record(-1), reader.get(count + 10));
+            Iterator<DataObject> iterator = reader.iterator();
+            for (int k = 0; k < count; k++) {
+                DataObject obj = iterator.next();
+                Assertions.assertEquals(batch.get(k), obj);
+                Assertions.assertEquals(batch.get(k).getMyData(), obj.getMyData());
+            }
+        } finally {
+            Files.delete(path);
+            Files.delete(RecordFileWriter.indexFile(path));
+        }
+    }
+
+    @Test
+    public void testLazyDataObject() throws IOException, ClassNotFoundException {
+        int count = 12;
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096)}) {
+            for (int k = 0; k < count; k++) DataObjectCodec.encode(record(k), buffer);
+            buffer.flip();
+            for (int k = 0; k < count; k++) {
+                DataObject expected = record(k);
+                LazyDataObject lazy = LazyDataObject.decode(buffer);
+                Assertions.assertEquals(k, lazy.getI());
+                Assertions.assertEquals(expected.getObj() != null, lazy.hasObj());
+                Assertions.assertEquals(expected.getObj() != null && expected.getObj().isB(), lazy.isB());
+                //Равенство и hashCode в обе стороны с обычным DataObject
+                Assertions.assertEquals(expected, lazy);
+                Assertions.assertEquals(lazy, expected);
+                Assertions.assertEquals(expected.hashCode(), lazy.hashCode());
+                Assertions.assertEquals(expected.getMyData(), lazy.getMyData());
+                //Строка декодируется один раз
+                Assertions.assertSame(lazy.getS(), lazy.getS());
+            }
+            Assertions.assertFalse(buffer.hasRemaining());
+        }
+
+        //Сеттер переносит поля в обычный объект, остальные значения сохраняются
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        DataObjectCodec.encode(record(6), buffer);
+        buffer.flip();
+        LazyDataObject lazy = new LazyDataObject(buffer);
+        Assertions.assertEquals(0, buffer.position());
+        lazy.setI(100);
+        Assertions.assertEquals(100, lazy.getI());
+        Assertions.assertEquals(record(6).getS(), lazy.getS());
+        Assertions.assertEquals(record(6).getMyData(), lazy.getMyData());
+        Assertions.assertTrue(lazy.isB() == record(6).getObj().isB());
+
+        //После getObj() isB()/hasObj() отвечают по созданному CustomObject, а не по буферу
+        buffer.rewind();
+        lazy = new LazyDataObject(buffer);
+        boolean b = lazy.isB();
+        lazy.getObj().setB(!b);
+        Assertions.assertEquals(!b, lazy.isB());
+        Assertions.assertTrue(lazy.hasObj());
+        Assertions.assertEquals(!b, lazy.toDataObject().getObj().isB());
+
+        //При сериализации заменяется обычным DataObject
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(LazyDataObject.decode(ByteBuffer.wrap(freshCodec(record(5)))));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            DataObject clone = (DataObject) in.readObject();
+            Assertions.assertEquals(DataObject.class, clone.getClass());
+            Assertions.assertEquals(record(5), clone);
+            Assertions.assertEquals(record(5).getMyData(), clone.getMyData());
+        }
+
+        Path path = freshRecordFile();
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            for (int k = 0; k < count; k++) writer.append(record(k));
+        }
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            Assertions.assertEquals(reader.get(9), reader.getLazy(9));
+            Assertions.assertEquals(record(9).getMyData(), reader.getLazy(9).getMyData());
+        } finally {
+            Files.delete(path);
+            Files.delete(RecordFileWriter.indexFile(path));
+        }
+    }
+
+    private static byte[] freshCodec(DataObject obj) {
+        ByteBuffer buffer = ByteBuffer.allocate(DataObjectCodec.encodedSize(obj));
+        DataObjectCodec.encode(obj, buffer);
+        return buffer.array();
+    }
+
+    @Test
+    public void testColumnarBatch() {
+        int count = 1000;
+        List<DataObject> rows = new ArrayList<>();
+        for (int k = 0; k < count; k++) rows.add(record(k));
+        ColumnarBatch batch = ColumnarBatch.of(rows);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(batch.encodedSize());
+        batch.writeTo(buffer);
+        Assertions.assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        ColumnarBatch read = ColumnarBatch.readFrom(buffer);
+        Assertions.assertFalse(buffer.hasRemaining());
+
+        for (ColumnarBatch columns : new ColumnarBatch[]{batch, read}) {
+            Assertions.assertEquals(count, columns.size());
+            Assertions.assertEquals(count, columns.all().cardinality());
+            //100 <= i <= 299 и b == true: каждая четвертая строка
+            ColumnarBatch.Selection selection = columns.whereIBetween(100, 299).and(columns.whereB(true));
+            Assertions.assertEquals(50, selection.cardinality());
+            List<DataObject> matched = columns.materialize(selection);
+            int expected = 100;
+            for (DataObject obj : matched) {
+                Assertions.assertEquals(record(expected), obj);
+                Assertions.assertEquals(record(expected).getMyData(), obj.getMyData());
+                expected += 4;
+            }
+            Assertions.assertEquals(columns.whereIBetween(100, 299).cardinality(), columns.whereI(i -> i >= 100 && i <= 299).cardinality());
+            //Без CustomObject, с ним и b == false, с ним и b == true
+            Assertions.assertEquals(count, columns.whereObjNull().or(columns.whereB(false)).or(columns.whereB(true)).cardinality());
+            Assertions.assertEquals(count / 2, columns.whereObjNull().not().cardinality());
+            Assertions.assertEquals(334, columns.whereMyData(data -> data == null).cardinality());
+            ColumnarBatch.Selection one = columns.whereS("record 999"::equals);
+            Assertions.assertEquals(999, one.nextSelected(0));
+            Assertions.assertEquals(-1, one.nextSelected(1000));
+            Assertions.assertTrue(one.isSelected(999));
+            Assertions.assertEquals(record(7), columns.row(7));
+            Assertions.assertEquals("data 7", columns.getMyData(7));
+            Assertions.assertEquals(7, columns.getI(7));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ColumnarBatch.readFrom(ByteBuffer.allocate(8)));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> batch.row(count));
+        //Выборки разных по размеру пакетов не объединяются
+        ColumnarBatch smaller = ColumnarBatch.of(rows.subList(0, 100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> batch.all().and(smaller.all()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> smaller.all().or(batch.all()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> smaller.materialize(batch.all()));
+    }
+
+    @Test
+    public void testCachedRecordReader() throws Exception {
+        int count = 100;
+        Path path = freshRecordFile();
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            for (int k = 0; k < count; k++) writer.append(record(k));
+        }
+        try (CachedRecordReader cache = new CachedRecordReader(path, "SerializationTest", 1 << 20, 1, TimeUnit.MINUTES)) {
+            DataObject first = cache.get(5);
+            Assertions.assertEquals(record(5), first);
+            Assertions.assertSame(first, cache.get(5));
+            Assertions.assertEquals(1, cache.stats().missCount());
+            Assertions.assertEquals(1, cache.stats().hitCount());
+            Assertions.assertNull(cache.getIfPresent(6));
+
+            //Одновременные промахи по одной записи загружают ее один раз
+            int threads = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> readers = new ArrayList<>();
+            DataObject[] results = new DataObject[threads];
+            for (int t = 0; t < threads; t++) {
+                int slot = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        results[slot] = cache.get(42);
+                    } catch (InterruptedException | IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                readers.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : readers) thread.join();
+            for (DataObject result : results) Assertions.assertSame(results[0], result);
+            Assertions.assertEquals(2, cache.stats().loadCount());
+
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> cache.get(count));
+            Object hits = ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(Jmx.objectName("RecordCache", "SerializationTest"), "HitCount");
+            Assertions.assertEquals(cache.stats().hitCount(), hits);
+        }
+
+        //Закрытие замененного кэша не снимает MBean кэша, зарегистрированного под тем же именем позже
+        ObjectName shared = Jmx.objectName("RecordCache", "SerializationTest-shared");
+        CachedRecordReader older = new CachedRecordReader(path, "SerializationTest-shared", 1 << 20, 1, TimeUnit.MINUTES);
+        try (CachedRecordReader newer = new CachedRecordReader(path, "SerializationTest-shared", 1 << 20, 1, TimeUnit.MINUTES)) {
+            older.close();
+            Assertions.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(shared));
+            newer.get(1);
+            Assertions.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(shared, "MissCount"));
+        }
+        Assertions.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(shared));
+
+        //Вес ограничивает число записей в кэше
+        long maxBytes = 10L * CachedRecordReader.weight(record(99));
+        try (CachedRecordReader cache = new CachedRecordReader(path, "SerializationTest", maxBytes, 1, TimeUnit.MINUTES)) {
+            for (int k = 0; k < count; k++) Assertions.assertEquals(record(k), cache.get(k));
+            Assertions.assertTrue(cache.getSize() <= 10);
+            Assertions.assertTrue(cache.stats().evictionCount() >= count - 10);
+        }
+
+        //Запись без обращений удаляется по истечении срока
+        try (CachedRecordReader cache = new CachedRecordReader(path, "SerializationTest", 1 << 20, 20, TimeUnit.MILLISECONDS)) {
+            cache.get(1);
+            Thread.sleep(100);
+            Assertions.assertNull(cache.getIfPresent(1));
+            cache.get(1);
+            Assertions.assertEquals(2, cache.stats().loadCount());
+        } finally {
+            Files.delete(path);
+            Files.delete(RecordFileWriter.indexFile(path));
+        }
+    }
+
+    @Test
+    public void testMappedStore() throws IOException {
+        Path path = Paths.get("mapped.bin");
+        int count = 1000;
+        //Маленькие сегменты, чтобы записи и строки попадали в разные отображения
+        try (MappedDataObjectWriter writer = new MappedDataObjectWriter(path, 256)) {
+            for (int k = 0; k < count; k++) writer.append(record(k));
+            DataObject empty = record(count);
+            empty.setS("");
+            writer.append(empty);
+        }
+        try (MappedDataObjectStore store = new MappedDataObjectStore(path)) {
+            Assertions.assertEquals(count + 1, store.size());
+            MappedDataObjectStore.Flyweight flyweight = store.flyweight();
+            for (int k = 0; k < count; k++) {
+                DataObject expected = record(k);
+                flyweight.moveTo(k);
+                Assertions.assertEquals(k, flyweight.getI());
+                Assertions.assertEquals(expected.getObj() != null, flyweight.hasObj());
+                Assertions.assertEquals(expected.getObj() != null && expected.getObj().isB(), flyweight.isB());
+                Assertions.assertTrue(flyweight.sEquals(expected.getS().getBytes(StandardCharsets.UTF_8)));
+                Assertions.assertEquals(expected, flyweight.materialize());
+                Assertions.assertEquals(expected.getMyData(), flyweight.getMyData());
+            }
+            Assertions.assertEquals("", store.get(count).getS());
+            Assertions.assertFalse(flyweight.moveTo(1).sEquals("record 2".getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Files.delete(path);
+            Files.delete(MappedDataObjectStore.stringFile(path));
+        }
+    }
+
+    @Test
+    public void testDictionaryBatch() throws IOException, ClassNotFoundException {
+        List<DataObject> batch = new ArrayList<>();
+        for (int k = 0; k < 1000; k++) {
+            DataObject obj = record(k);
+            //Равные, но разные экземпляры строк
+            obj.setS(new String("kind " + (k % 5)));
+            obj.setMyData(k % 7 == 0 ? null : new String("long string, only string, nothing, but long string"));
+            batch.add(obj);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DictionaryBatchWriter writer = new DictionaryBatchWriter(bytes)) {
+            writer.write(batch);
+            writer.write(batch.subList(0, 10));
+        }
+        ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(javaBytes)) {
+            for (DataObject obj : batch) objectOutputStream.writeObject(obj);
+        }
+        Assertions.assertTrue(bytes.size() * 10 < javaBytes.size());
+
+        try (DictionaryBatchReader reader = new DictionaryBatchReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            List<DataObject> clone = reader.read();
+            Assertions.assertEquals(batch, clone);
+            for (int k = 0; k < batch.size(); k++) {
+                Assertions.assertEquals(batch.get(k).getMyData(), clone.get(k).getMyData());
+            }
+            //Равные строки пакета - один экземпляр
+            Assertions.assertSame(clone.get(0).getS(), clone.get(5).getS());
+            Assertions.assertSame(clone.get(1).getMyData(), clone.get(2).getMyData());
+            //и между пакетами
+            List<DataObject> next = reader.read();
+            Assertions.assertEquals(batch.subList(0, 10), next);
+            Assertions.assertSame(clone.get(0).getS(), next.get(0).getS());
+            Assertions.assertSame(clone.get(1).getMyData(), next.get(1).getMyData());
+            Assertions.assertNull(reader.read());
+        }
+        try (DictionaryBatchReader reader = new DictionaryBatchReader(new ByteArrayInputStream(bytes.toByteArray()), 0)) {
+            Assertions.assertNotSame(reader.read().get(0).getS(), reader.read().get(0).getS());
+        }
+
+        //Неудачный пакет не оставляет строк в словаре следующего
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (DictionaryBatchWriter writer = new DictionaryBatchWriter(expected)) {
+            writer.write(batch.subList(0, 10));
+        }
+        ByteArrayOutputStream afterFailure = new ByteArrayOutputStream();
+        try (DictionaryBatchWriter writer = new DictionaryBatchWriter(afterFailure)) {
+            Assertions.assertThrows(NullPointerException.class, () -> writer.write(Arrays.asList(record(500), null)));
+            writer.write(batch.subList(0, 10));
+        }
+        Assertions.assertArrayEquals(expected.toByteArray(), afterFailure.toByteArray());
+    }
+
+    @Test
+    public void testReadInto() throws IOException {
+        Path path = freshRecordFile();
+        int count = 100;
+        try (RecordFileWriter writer = new RecordFileWriter(path)) {
+            for (int k = 0; k < count; k++) {
+                DataObject obj = record(k);
+                obj.setS("строка " + (k / 10));
+                writer.append(obj);
+            }
+        }
+        DataObjectPool pool = new DataObjectPool(4);
+        try (RecordFileReader reader = new RecordFileReader(path)) {
+            RecordFileReader.Cursor cursor = reader.cursor();
+            DataObject target = pool.acquire();
+            target.setDef(new String[] {"1"});
+            String previous = null;
+            for (int k = 0; k < count; k++) {
+                Assertions.assertTrue(cursor.readInto(target));
+                DataObject expected = record(k);
+                expected.setS("строка " + (k / 10));
+                Assertions.assertEquals(expected, target);
+                Assertions.assertEquals(expected.getMyData(), target.getMyData());
+                Assertions.assertNull(target.getDef());
+                //Совпадающая строка не создается заново
+                if (k % 10 != 0) Assertions.assertSame(previous, target.getS());
+                previous = target.getS();
+            }
+            Assertions.assertFalse(cursor.readInto(target));
+            pool.release(target);
+            Assertions.assertSame(target, pool.acquire());
+
+            reader.readInto(42, target);
+            Assertions.assertEquals(42, target.getI());
+            //Произвольный доступ через readInto в установившемся режиме почти не выделяет память
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            for (int k = 0; k < 1000; k++) reader.readInto(42, target);
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int k = 0; k < 1000; k++) reader.readInto(42, target);
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            //Без буфера потока - два ByteBuffer на вызов, больше 100 байт
+            Assertions.assertTrue(allocated < 16 * 1000, allocated + " bytes per 1000 calls");
+        } finally {
+            Files.delete(path);
+            Files.delete(RecordFileWriter.indexFile(path));
+        }
+    }
+
+    @Test
+    public void testSerializationMetrics() throws Exception {
+        SerializationMetrics metrics = SerializationMetrics.forName("SerializationTest");
+        metrics.reset();
+        int count = 100;
+
+        ByteArrayOutputStream metered = new ByteArrayOutputStream();
+        try (MeteredObjectOutputStream out = new MeteredObjectOutputStream(metered, metrics)) {
+            for (int k = 0; k < count; k++) out.writeMeasured(record(k));
+            Assertions.assertEquals(metered.size(), out.bytesWritten());
+        }
+        //Замеры не меняют формат потока
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(plain)) {
+            for (int k = 0; k < count; k++) out.writeObject(record(k));
+        }
+        Assertions.assertArrayEquals(plain.toByteArray(), metered.toByteArray());
+
+        SerializationMetrics.Snapshot snapshot = metrics.snapshot();
+        SerializationMetrics.ClassSnapshot dataObject = snapshot.classes().get(DataObject.class.getName());
+        Assertions.assertEquals(count, dataObject.encoded());
+        //Все байты потока, кроме заголовка (magic + version), распределены по объектам
+        Assertions.assertEquals(metered.size() - 4, dataObject.bytes());
+        //Описания DataObject и CustomObject пишутся один раз, дальше - ссылки на них
+        Assertions.assertTrue(dataObject.descriptorBytes() > 0);
+        Assertions.assertTrue(dataObject.payloadBytes() > dataObject.descriptorBytes());
+        Assertions.assertTrue(snapshot.objectBytes().max() > 2 * snapshot.objectBytes().percentile(50));
+        Assertions.assertEquals(count, snapshot.encodeTime().count());
+
+        try (MeteredObjectInputStream in = new MeteredObjectInputStream(new ByteArrayInputStream(metered.toByteArray()), metrics)) {
+            for (int k = 0; k < count; k++) Assertions.assertEquals(record(k), in.readMeasured());
+        }
+        dataObject = metrics.snapshot().classes().get(DataObject.class.getName());
+        Assertions.assertEquals(count, dataObject.decoded());
+        Assertions.assertTrue(dataObject.decodedBytes() <= metered.size() - 4);
+
+        //Обертка над кодеком: размер совпадает с encodedSize, описаний классов нет
+        SerializationMetrics codecMetrics = SerializationMetrics.forName("SerializationTest.codec");
+        codecMetrics.reset();
+        MeteredCodec<DataObject> codec = MeteredCodec.forDataObject(codecMetrics);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long expected = 0;
+        for (int k = 0; k < count; k++) {
+            codec.encode(record(k), buffer);
+            expected += DataObjectCodec.encodedSize(record(k));
+        }
+        buffer.flip();
+        for (int k = 0; k < count; k++) Assertions.assertEquals(record(k), codec.decode(buffer));
+        SerializationMetrics.ClassSnapshot encoded = codecMetrics.snapshot().classes().get(DataObject.class.getName());
+        Assertions.assertEquals(expected, encoded.bytes());
+        Assertions.assertEquals(0, encoded.descriptorBytes());
+        Assertions.assertEquals(expected, encoded.decodedBytes());
+
+        Object encodedCount = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(Jmx.objectName("SerializationMetrics", "SerializationTest"), "Encoded");
+        Assertions.assertEquals((long) count, encodedCount);
+    }
+
+    /*
+    Сообщение на кадр: общие описания классов на сессию против нового ObjectOutputStream на каждое сообщение.
+    Соединение заменено PipedInputStream/PipedOutputStream, писатель в отдельном потоке.
+    */
+    @Test
+    public void testSessionStream() throws Exception {
+        int count = 1000;
+        //Время - от начала записи до чтения последнего сообщения на другой стороне канала
+        PipedInputStream pipeIn = new PipedInputStream(64 * 1024);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+        AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try (SessionObjectOutputStream out = new SessionObjectOutputStream(pipeOut)) {
+                for (int k = 0; k < count; k++) out.writeMessage(record(k));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.setUncaughtExceptionHandler((thread, e) -> writerFailure.set(e));
+        long sessionStart = System.nanoTime();
+        writer.start();
+        try (SessionObjectInputStream in = new SessionObjectInputStream(pipeIn)) {
+            for (int k = 0; k < count; k++) {
+                DataObject message = (DataObject) in.readMessage();
+                Assertions.assertEquals(record(k), message);
+                Assertions.assertEquals(record(k).getMyData(), message.getMyData());
+            }
+        } finally {
+            joinWriter(writer, writerFailure);
+        }
+        long sessionNanos = System.nanoTime() - sessionStart;
+
+        //Для сравнения - свой ObjectOutputStream на каждое сообщение, кадр [int длина][байты] через такой же канал
+        PipedInputStream freshPipeIn = new PipedInputStream(64 * 1024);
+        PipedOutputStream freshPipeOut = new PipedOutputStream(freshPipeIn);
+        Thread freshWriter = new Thread(() -> {
+            try (DataOutputStream out = new DataOutputStream(freshPipeOut)) {
+                for (int k = 0; k < count; k++) {
+                    byte[] message = freshBytes(record(k));
+                    out.writeInt(message.length);
+                    out.write(message);
+                    //Как writeMessage: сообщение уходит в канал сразу
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        freshWriter.setUncaughtExceptionHandler((thread, e) -> writerFailure.set(e));
+        long freshBytes = 0;
+        long freshStart = System.nanoTime();
+        freshWriter.start();
+        try (DataInputStream in = new DataInputStream(freshPipeIn)) {
+            for (int k = 0; k < count; k++) {
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                freshBytes += message.length;
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(message))) {
+                    Assertions.assertEquals(record(k), objectIn.readObject());
+                }
+            }
+        } finally {
+            joinWriter(freshWriter, writerFailure);
+        }
+        long freshNanos = System.nanoTime() - freshStart;
+
+        ByteArrayOutputStream session = new ByteArrayOutputStream();
+        try (SessionObjectOutputStream out = new SessionObjectOutputStream(session)) {
+            for (int k = 0; k < count; k++) out.writeMessage(record(k));
+            Assertions.assertEquals(2, out.descriptorCount());
+        }
+        System.out.printf("session stream: %.1f bytes/message, %d ns/message round trip; fresh ObjectOutputStream: %.1f bytes/message, %d ns/message round trip%n",
+                (double) session.size() / count, sessionNanos / count, (double) freshBytes / count, freshNanos / count);
+        Assertions.assertTrue(session.size() * 3 < freshBytes);
+
+        //Повторное чтение того же потока: описания восстанавливаются из реестра сессии
+        try (SessionObjectInputStream in = new SessionObjectInputStream(new ByteArrayInputStream(session.toByteArray()))) {
+            for (int k = 0; k < count; k++) Assertions.assertEquals(record(k), in.readMessage());
+        }
+        Assertions.assertThrows(StreamCorruptedException.class, () -> new SessionObjectInputStream(new ByteArrayInputStream(freshBytes(record(0)))));
+    }
+
+    //Исключение потока записи пробрасывается в тест, а не теряется в его стеке
+    private static void joinWriter(Thread writer, AtomicReference<Throwable> failure) throws IOException, InterruptedException {
+        writer.join();
+        Throwable failed = failure.get();
+        if (failed instanceof UncheckedIOException) throw ((UncheckedIOException) failed).getCause();
+        if (failed != null) throw new AssertionError("Writer thread failed", failed);
+    }
+
+    //Запись, на которой DataObjectCodec.encode падает после того, как размер уже посчитан
+    private static final class BrokenDataObject extends DataObject {
+
+        private static final long serialVersionUID = 1L;
+
+        //Падение откладывается, пока не начнет кодироваться другая запись
+        private final transient CountDownLatch before;
+
+        BrokenDataObject() {
+            this(new CountDownLatch(0));
+        }
+
+        BrokenDataObject(CountDownLatch before) {
+            this.before = before;
+        }
+
+        @Override
+        public int getI() {
+            try {
+                before.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("Broken record");
+        }
+    }
+
+    //Запись, кодирование которой останавливается до сигнала proceed
+    private static final class BlockingDataObject extends DataObject {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient CountDownLatch entered;
+        private final transient CountDownLatch proceed;
+
+        BlockingDataObject(int i, CountDownLatch entered, CountDownLatch proceed) {
+            setI(i);
+            this.entered = entered;
+            this.proceed = proceed;
+        }
+
+        @Override
+        public int getI() {
+            entered.countDown();
+            try {
+                proceed.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getI();
+        }
+    }
+
+    private static byte[] freshBytes(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Файл записей дописывается, поэтому остатки упавшего прогона удаляются перед записью
+    private static Path freshRecordFile() throws IOException {
+        Path path = Paths.get("records.bin");
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(RecordFileWriter.indexFile(path));
+        return path;
+    }
+
+    private static DataObject record(int k) {
+        DataObject obj = new DataObject();
+        obj.setI(k);
+        obj.setS("record " + k);
+        obj.setMyData(k % 3 == 0 ? null : "data " + k);
+        if (k % 2 == 0) {
+            CustomObject custom = new CustomObject();
+            custom.setB(k % 4 == 0);
+            obj.setObj(custom);
+        }
+        return obj;
+    }
+
 }